@@ -17,6 +17,17 @@ public class ArgumentParser {
     private ArrayList<String> requestCities = null;
     private String searchCity = null;
     private String searchCityNation = null;
+    private String cachedCity = null;
+    private double[] near = null; // latitude, longitude
+    private int nearCount = 10;
+    private double[] within = null; // latitude, longitude, km
+    private WeatherTree.Measure top = null;
+    private int topCount = 10;
+    private WeatherTree.Measure above = null;
+    private double aboveValue;
+    private String historyCity = null;
+    private WeatherTree.Measure historyMeasure = null;
+    private int historyHours = 24;
     private ArrayList<String> addCities = null;
     private ArrayList<String> removeCities = null;
     private boolean argDetail = false;
@@ -59,6 +70,55 @@ public class ArgumentParser {
         }
     }
 
+    /**
+     * get next number from args
+     *
+     * @param min the smallest number allowed
+     * @param max the largest number allowed
+     * @return next number from args
+     * @throws IllegalArgumentException when there is no number or it is out of range
+     */
+    double getNextNumber(double min, double max) throws IllegalArgumentException {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("missing number, expect one from " + min + " to "
+                + max);
+        }
+        String arg = getNextArgumentString();
+        double number;
+        try {
+            number = Double.parseDouble(arg);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a number: " + arg);
+        }
+        if (!(number >= min && number <= max)) {
+            throw new IllegalArgumentException(arg + " is out of range, expect one from " + min
+                + " to " + max);
+        }
+        return number;
+    }
+
+    double getNextLatitude() throws IllegalArgumentException {
+        return getNextNumber(-90, 90);
+    }
+
+    double getNextLongitude() throws IllegalArgumentException {
+        return getNextNumber(-180, 180);
+    }
+
+    /**
+     * get next measure of weather from args
+     *
+     * @return next measure from args
+     * @throws IllegalArgumentException when there is no measure or it is unknown
+     */
+    WeatherTree.Measure getNextMeasure() throws IllegalArgumentException {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(
+                "missing measure, expect temperature, humidity, wind or pressure");
+        }
+        return WeatherTree.Measure.of(getNextArgumentString());
+    }
+
     /**
      * parser the args
      *
@@ -100,6 +160,37 @@ public class ArgumentParser {
                         .startsWith("\"-")) {
                         removeCities.add(getNextArgumentString());
                     }
+                } else if (arg.equals("--cached")) {
+                    cachedCity = "";
+                    if (index < args.length && !args[index].startsWith("-") && !args[index]
+                        .startsWith("\"-")) {
+                        cachedCity = getNextArgumentString();
+                    }
+                } else if (arg.equals("--near")) {
+                    near = new double[] {getNextLatitude(), getNextLongitude()};
+                    if (index < args.length && !args[index].startsWith("-")) {
+                        nearCount = (int) getNextNumber(1, 1000);
+                    }
+                } else if (arg.equals("--within")) {
+                    within = new double[] {getNextLatitude(), getNextLongitude(),
+                        getNextNumber(0, 20038)};
+                } else if (arg.equals("--top")) {
+                    top = getNextMeasure();
+                    if (index < args.length && !args[index].startsWith("-")) {
+                        topCount = (int) getNextNumber(1, 1000);
+                    }
+                } else if (arg.equals("--above")) {
+                    above = getNextMeasure();
+                    aboveValue = getNextNumber(-Double.MAX_VALUE, Double.MAX_VALUE);
+                } else if (arg.equals("--history")) {
+                    if (index >= args.length) {
+                        throw new IllegalArgumentException("missing city name of --history");
+                    }
+                    historyCity = getNextArgumentString();
+                    historyMeasure = getNextMeasure();
+                    if (index < args.length && !args[index].startsWith("-")) {
+                        historyHours = (int) getNextNumber(1, 24 * 30);
+                    }
                 } else if (arg.equals("--search") || arg.equals("-s")) {
                     searchCity = getNextArgumentString();
                     if (index < args.length) {
@@ -147,6 +238,105 @@ public class ArgumentParser {
         return searchCityNation;
     }
 
+    /**
+     * get the beginning of the cached cities to list
+     *
+     * @return beginning of cached city names, empty string for all, null if no --cached
+     */
+    public String getCachedCity() {
+        return cachedCity;
+    }
+
+    /**
+     * get the place to find nearest cities to
+     *
+     * @return latitude and longitude of the place, null if no --near
+     */
+    public double[] getNear() {
+        return near;
+    }
+
+    /**
+     * get the number of nearest cities to find
+     *
+     * @return number of nearest cities, 10 by default
+     */
+    public int getNearCount() {
+        return nearCount;
+    }
+
+    /**
+     * get the place and distance to find cities within
+     *
+     * @return latitude, longitude of the place and the distance in km, null if no --within
+     */
+    public double[] getWithin() {
+        return within;
+    }
+
+    /**
+     * get the measure to show the cities with highest values of
+     *
+     * @return measure of --top, null if no --top
+     */
+    public WeatherTree.Measure getTop() {
+        return top;
+    }
+
+    /**
+     * get the number of cities to show for --top
+     *
+     * @return number of cities, 10 by default
+     */
+    public int getTopCount() {
+        return topCount;
+    }
+
+    /**
+     * get the measure to show the cities above a value of
+     *
+     * @return measure of --above, null if no --above
+     */
+    public WeatherTree.Measure getAbove() {
+        return above;
+    }
+
+    /**
+     * get the value the cities of --above have to be above
+     *
+     * @return value of --above
+     */
+    public double getAboveValue() {
+        return aboveValue;
+    }
+
+    /**
+     * get the city to show the history of
+     *
+     * @return city of --history, null if no --history
+     */
+    public String getHistoryCity() {
+        return historyCity;
+    }
+
+    /**
+     * get the measure to show the history of
+     *
+     * @return measure of --history
+     */
+    public WeatherTree.Measure getHistoryMeasure() {
+        return historyMeasure;
+    }
+
+    /**
+     * get the number of hours back the history of --history goes
+     *
+     * @return hours of --history
+     */
+    public int getHistoryHours() {
+        return historyHours;
+    }
+
     /**
      * get the cities add to favorite list
      *
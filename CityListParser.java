@@ -0,0 +1,311 @@
+// --== CS400 File Header Information ==--
+// Name: Jiahe Jin
+// Email: jjin82@wisc.edu
+// Team: JB
+// Role: Back End Developer
+// TA: Harper
+// Lecturer: Florian Heimerl
+// Notes to Grader: This class reads city.list.json piece by piece instead of building the whole
+// JSONArray of json-simple in memory, so only the fields CityNameList keeps are ever allocated.
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * This class is a streaming tokenizer for the city list of openweathermap. It walks the top level
+ * array one city object at a time, keeps the name, country, id and coord of each city and skips
+ * every other field without building any objects for it.
+ *
+ * @author Jiahe Jin
+ */
+public class CityListParser {
+
+    /**
+     * The receiver of the cities read out of the list, called once for each city in file order.
+     */
+    public interface Handler {
+        void city(String name, String country, int id, double longitude, double latitude);
+    }
+
+    private final Reader reader;
+    private final char[] buffer = new char[1 << 16];
+    private final StringBuilder text = new StringBuilder();
+    private int position; // next unread char in the buffer
+    private int limit;    // number of valid chars in the buffer
+    private int consumed; // number of chars read before the buffer, for the error position
+
+    /**
+     * The constructor takes the reader of the city list, which is read through its own buffer so
+     * the reader does not need to be buffered.
+     *
+     * @param reader the reader of city.list.json
+     */
+    public CityListParser(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * This method reads the whole city list and gives every city to the handler.
+     *
+     * @param handler the receiver of the cities
+     * @throws IOException    when the reader meets an error
+     * @throws ParseException when the list is not a JSON array of city objects
+     */
+    public void parse(Handler handler) throws IOException, ParseException {
+        expect('[');
+        if (peek() == ']') {
+            read();
+            return;
+        }
+        do {
+            parseCity(handler);
+        } while (separator(']'));
+    }
+
+    /**
+     * The private helper method reads one city object and gives its fields to the handler.
+     */
+    private void parseCity(Handler handler) throws IOException, ParseException {
+        String name = "";
+        String country = "";
+        int id = 0;
+        double[] coord = {0, 0};
+        expect('{');
+        if (peek() == '}') {
+            read();
+        } else {
+            do {
+                String key = readString();
+                expect(':');
+                switch (key) {
+                    case "name":
+                        name = readString();
+                        break;
+                    case "country":
+                        country = readString();
+                        break;
+                    case "id":
+                        id = (int) readNumber();
+                        break;
+                    case "coord":
+                        parseCoord(coord);
+                        break;
+                    default:
+                        skipValue();
+                }
+            } while (separator('}'));
+        }
+        handler.city(name, country, id, coord[0], coord[1]);
+    }
+
+    /**
+     * The private helper method reads the coord object of a city into {longitude, latitude}.
+     */
+    private void parseCoord(double[] coord) throws IOException, ParseException {
+        expect('{');
+        if (peek() == '}') {
+            read();
+            return;
+        }
+        do {
+            String key = readString();
+            expect(':');
+            if (key.equals("lon")) {
+                coord[0] = readNumber();
+            } else if (key.equals("lat")) {
+                coord[1] = readNumber();
+            } else {
+                skipValue();
+            }
+        } while (separator('}'));
+    }
+
+    /**
+     * The private helper method skips one value of any type, including nested objects and arrays.
+     */
+    private void skipValue() throws IOException, ParseException {
+        char c = peek();
+        if (c == '"') {
+            readString();
+        } else if (c == '{' || c == '[') {
+            char close = c == '{' ? '}' : ']';
+            read();
+            if (peek() == close) {
+                read();
+                return;
+            }
+            do {
+                if (close == '}') {
+                    readString();
+                    expect(':');
+                }
+                skipValue();
+            } while (separator(close));
+        } else if (c == '-' || (c >= '0' && c <= '9')) {
+            readNumber();
+        } else {
+            // true, false or null
+            while (position < limit || fill()) {
+                c = buffer[position];
+                if (c < 'a' || c > 'z') {
+                    break;
+                }
+                position++;
+            }
+        }
+    }
+
+    /**
+     * The private helper method reads a string value and resolves its escapes.
+     */
+    private String readString() throws IOException, ParseException {
+        expect('"');
+        text.setLength(0);
+        while (true) {
+            // copy the run of plain chars up to the next quote or escape in one go
+            int start = position;
+            while (position < limit && buffer[position] != '"' && buffer[position] != '\\') {
+                position++;
+            }
+            text.append(buffer, start, position - start);
+            char c = readRaw();
+            if (c == '"') {
+                return text.toString();
+            }
+            if (c == '\\') {
+                c = readRaw();
+                switch (c) {
+                    case 'b':
+                        c = '\b';
+                        break;
+                    case 'f':
+                        c = '\f';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(readRaw(), 16);
+                            if (digit < 0) {
+                                throw error();
+                            }
+                            code = (code << 4) | digit;
+                        }
+                        c = (char) code;
+                        break;
+                    default:
+                        // '"', '\\' and '/' stand for themselves
+                }
+            }
+            text.append(c);
+        }
+    }
+
+    /**
+     * The private helper method reads a number value.
+     */
+    private double readNumber() throws IOException, ParseException {
+        peek(); // skip the white space before the number
+        text.setLength(0);
+        while (position < limit || fill()) {
+            char c = buffer[position];
+            if ((c < '0' || c > '9') && c != '-' && c != '+' && c != '.' && c != 'e'
+                && c != 'E') {
+                break;
+            }
+            text.append(c);
+            position++;
+        }
+        try {
+            return Double.parseDouble(text.toString());
+        } catch (NumberFormatException e) {
+            throw error();
+        }
+    }
+
+    /**
+     * The private helper method reads the char after an element of an object or array.
+     *
+     * @param close the char that closes the object or array
+     * @return true when a comma follows and another element comes, false when it is closed
+     */
+    private boolean separator(char close) throws IOException, ParseException {
+        char c = read();
+        if (c == ',') {
+            return true;
+        }
+        if (c == close) {
+            return false;
+        }
+        throw error();
+    }
+
+    private void expect(char expected) throws IOException, ParseException {
+        if (read() != expected) {
+            throw error();
+        }
+    }
+
+    /**
+     * @return the next char that is not white space, without consuming it
+     */
+    private char peek() throws IOException, ParseException {
+        while (position < limit || fill()) {
+            char c = buffer[position];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+            position++;
+        }
+        throw error();
+    }
+
+    /**
+     * @return the next char that is not white space
+     */
+    private char read() throws IOException, ParseException {
+        char c = peek();
+        position++;
+        return c;
+    }
+
+    /**
+     * @return the next char, white space included
+     */
+    private char readRaw() throws IOException, ParseException {
+        if (position == limit && !fill()) {
+            throw error();
+        }
+        return buffer[position++];
+    }
+
+    /**
+     * The private helper method reads the next block of the reader into the buffer.
+     *
+     * @return false when the end of the reader has been reached
+     */
+    private boolean fill() throws IOException {
+        consumed += limit;
+        position = 0;
+        limit = Math.max(reader.read(buffer), 0);
+        return limit > 0;
+    }
+
+    private ParseException error() {
+        if (position >= limit) {
+            return new ParseException(consumed + position, ParseException.ERROR_UNEXPECTED_TOKEN,
+                null);
+        }
+        return new ParseException(consumed + position, ParseException.ERROR_UNEXPECTED_CHAR,
+            buffer[position]);
+    }
+}
@@ -5,57 +5,229 @@
 // Role: Back End Developer
 // TA: Harper
 // Lecturer: Florian Heimerl
-// Notes to Grader: All of our classes implements the java.io.Serializable to serialize the file into
-// caches to store the data for next time of use.
-import java.io.FileReader;
+// Notes to Grader: Unlike our other classes, this class is not cached by java.io.Serializable.
+// It is written into a binary index file which is mapped into memory and searched in place next
+// time.
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 /**
  * This class is used to load all of searchable names of cities in the list and
  * gives out several methods to search the desired cities based on their partial
- * starting names or their nations. And to be serialized, this class implements
- * the java.io.Serializable.
+ * starting names or their nations. The loaded list can be written into a binary
+ * index file, and the open method maps that file into memory so that searches run
+ * straight on the mapped bytes without reading the whole list back.
+ *
+ * <p>The cities can also be searched by place. Each city is turned into a point on
+ * the unit sphere, and the points are kept as a k-d tree, which finds the cities
+ * nearest to a place, or within a distance of it, without looking at the cities
+ * far away from it.
  *
  * @author Jiahe Jin
  */
-public class CityNameList implements java.io.Serializable {
-    private ArrayList city;
-    private ArrayList nation;
+public class CityNameList {
+    private static final int MAGIC = 0x57434e4c; // "WCNL"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 24;
+    private static final double EARTH_RADIUS = 6371.0088; // mean radius in km
 
+    private int size; // number of cities in the list
+    private ByteBuffer names; // UTF-8 bytes of all of city names, packed one after another
+    private IntBuffer nameOffsets; // start of each city name in names, with the end at size
+    private ShortBuffer nations; // code of each city's nation in nationDictionary
+    private String[] nationDictionary; // the distinct nations in sorted order
+    private IntBuffer ids; // openweathermap id of each city
+    private FloatBuffer longitudes;
+    private FloatBuffer latitudes;
+    private IntBuffer byName; // entry indexes sorted by city name
+    private IntBuffer byNation; // entry indexes sorted by nation, then by city name
+    private IntBuffer nameHashes; // precomputed hash code of each city name
+    private IntBuffer nameTable; // open addressing table of entry index + 1, 0 when empty
+    private IntBuffer byPlace; // entry indexes in the order of the k-d tree of places
+    private FloatBuffer places; // x, y, z of the point on the unit sphere of each byPlace entry
 
     /**
-     * The default constructor comes to instantiate the two blank ArrayList for both
-     * city and its corresponded nation.
+     * The default constructor comes to instantiate the blank columns for both city and its
+     * corresponded nation.
      */
     public CityNameList() {
-        city = new ArrayList();
-        nation = new ArrayList();
+        names = ByteBuffer.allocate(0);
+        nameOffsets = IntBuffer.allocate(1);
+        nations = ShortBuffer.allocate(0);
+        nationDictionary = new String[0];
+        ids = IntBuffer.allocate(0);
+        longitudes = FloatBuffer.allocate(0);
+        latitudes = FloatBuffer.allocate(0);
+        byName = IntBuffer.allocate(0);
+        byNation = IntBuffer.allocate(0);
+        nameHashes = IntBuffer.allocate(0);
+        nameTable = IntBuffer.allocate(1);
+        byPlace = IntBuffer.allocate(0);
+        places = FloatBuffer.allocate(0);
     }
 
     /**
-     * This method comes to load all of searchable cities with their country names
-     * into the two ArrayList in this class.
+     * This method comes to load all of searchable cities with their country names into the
+     * columns of this class, and then builds the prefix indexes and the hash table of names over
+     * them, and the k-d tree over their places. The file is read by the streaming CityListParser,
+     * so only the name, country, id and coord of each city are kept in memory while loading. The
+     * city names are packed into one byte array and the nations are kept as codes into a small
+     * dictionary, so the list costs a few bytes per city instead of two String objects.
      *
      * @throws IOException    when the FileReader meets an error
-     * @throws ParseException when the JSONParser meets an error
+     * @throws ParseException when the CityListParser meets an error
+     */
+    public void load() throws IOException, ParseException {
+        this.load("city.list.json");
+    }
+
+    /**
+     * This method loads the cities of the given city list the way load does.
+     *
+     * @param filename path of a city list in the format of city.list.json
+     * @throws IOException    when the FileReader meets an error
+     * @throws ParseException when the CityListParser meets an error
+     */
+    void load(String filename) throws IOException, ParseException {
+        Loader loader = new Loader();
+        try (Reader reader = new InputStreamReader(new FileInputStream(filename),
+            StandardCharsets.UTF_8)) {
+            new CityListParser(reader).parse(loader::add);
+        }
+        size = loader.size;
+        names = ByteBuffer.wrap(Arrays.copyOf(loader.names, loader.nameOffsets[size]));
+        nameOffsets = IntBuffer.wrap(Arrays.copyOf(loader.nameOffsets, size + 1));
+        ids = IntBuffer.wrap(Arrays.copyOf(loader.ids, size));
+        longitudes = FloatBuffer.wrap(Arrays.copyOf(loader.longitudes, size));
+        latitudes = FloatBuffer.wrap(Arrays.copyOf(loader.latitudes, size));
+        nations = ShortBuffer.wrap(loader.buildNationDictionary());
+        nationDictionary = loader.nationDictionary;
+        buildIndex();
+        nameHashes = IntBuffer.wrap(Arrays.copyOf(loader.nameHashes, size));
+        buildNameTable();
+        buildPlaceIndex();
+    }
+
+    /**
+     * This method opens a binary index file written by the write method. The file is mapped into
+     * memory and the columns are views over the mapped bytes, so nothing but the small nation
+     * dictionary is read until a search or contains touches it.
+     *
+     * @param filename path of the index file
+     * @return the CityNameList over the file, or null when there is no file or it was written by
+     * another version of this class
+     * @throws IOException when the file cannot be mapped
      */
-    @SuppressWarnings("unchecked") public void load() throws IOException, ParseException {
-        FileReader reader = new FileReader("city.list.json"); // read the file
-        JSONParser jsonParser = new JSONParser(); // JSON parser object to parse read file
-        Object object = jsonParser.parse(reader); // parse the reader into the json object
-        JSONArray searchList = (JSONArray) object; // cast jason object into JSONArray
+    public static CityNameList open(String filename) throws IOException {
+        ByteBuffer file;
+        try (FileChannel channel = FileChannel
+            .open(Paths.get(filename), StandardOpenOption.READ)) {
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (file.limit() < HEADER_BYTES || file.getInt(0) != MAGIC
+            || file.getInt(4) != VERSION) {
+            return null;
+        }
+        CityNameList list = new CityNameList();
+        list.size = file.getInt(8);
+        int nameBytes = file.getInt(12);
+        int nationCount = file.getInt(16);
+        int tableLength = file.getInt(20);
+        file.position(HEADER_BYTES);
+        list.nationDictionary = new String[nationCount];
+        for (int i = 0; i < nationCount; i++) {
+            byte[] nation = new byte[file.get() & 0xff];
+            file.get(nation);
+            list.nationDictionary[i] = new String(nation, StandardCharsets.UTF_8);
+        }
+        align(file);
+        int size = list.size;
+        if (file.remaining() != columnBytes(size, tableLength, nameBytes)) {
+            return null;
+        }
+        list.nameOffsets = slice(file, (size + 1) * 4).asIntBuffer();
+        list.ids = slice(file, size * 4).asIntBuffer();
+        list.longitudes = slice(file, size * 4).asFloatBuffer();
+        list.latitudes = slice(file, size * 4).asFloatBuffer();
+        list.byName = slice(file, size * 4).asIntBuffer();
+        list.byNation = slice(file, size * 4).asIntBuffer();
+        list.nameHashes = slice(file, size * 4).asIntBuffer();
+        list.nameTable = slice(file, tableLength * 4).asIntBuffer();
+        list.byPlace = slice(file, size * 4).asIntBuffer();
+        list.places = slice(file, size * 12).asFloatBuffer();
+        list.nations = slice(file, size * 2).asShortBuffer();
+        list.names = slice(file, nameBytes);
+        return list;
+    }
 
-        for (Object o : searchList) {
-            city.add(((JSONObject) o).get("name").toString());
-            nation.add(((JSONObject) o).get("country").toString());
+    /**
+     * This method writes the list with its indexes into a binary index file that can be mapped
+     * back by the open method. The file is written next to the target first and then moved over
+     * it, so a reader never sees a half written index.
+     *
+     * @param filename path of the index file
+     * @throws IOException when the file cannot be written
+     */
+    public void write(String filename) throws IOException {
+        byte[][] nationBytes = new byte[nationDictionary.length][];
+        int dictionaryBytes = 0;
+        for (int i = 0; i < nationDictionary.length; i++) {
+            nationBytes[i] = nationDictionary[i].getBytes(StandardCharsets.UTF_8);
+            dictionaryBytes += 1 + nationBytes[i].length;
+        }
+        int columns = columnBytes(size, nameTable.limit(), names.limit());
+        ByteBuffer file =
+            ByteBuffer.allocate((HEADER_BYTES + dictionaryBytes + 3 & ~3) + columns);
+        file.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(names.limit())
+            .putInt(nationDictionary.length).putInt(nameTable.limit());
+        for (byte[] nation : nationBytes) {
+            file.put((byte) nation.length).put(nation);
         }
+        align(file);
+        putInts(file, nameOffsets);
+        putInts(file, ids);
+        putFloats(file, longitudes);
+        putFloats(file, latitudes);
+        putInts(file, byName);
+        putInts(file, byNation);
+        putInts(file, nameHashes);
+        putInts(file, nameTable);
+        putInts(file, byPlace);
+        putFloats(file, places);
+        file.asShortBuffer().put(nations.duplicate().rewind());
+        file.position(file.position() + size * 2);
+        file.put(names.duplicate().rewind());
+        file.flip();
 
+        Path target = Paths.get(filename);
+        Path temporary = Paths.get(filename + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (file.hasRemaining()) {
+                channel.write(file);
+            }
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
     }
 
     /**
@@ -67,124 +239,598 @@ public class CityNameList implements java.io.Serializable {
      * it does not contain the name of this city.
      */
     public boolean contains(String name) {
-        return this.city.contains(name);
+        return this.find(name) >= 0;
+    }
+
+    /**
+     * This method gives out the openweathermap id of the city of the name, which the api takes to
+     * fetch many cities at once. When cities share the name, such as the Londons of several
+     * nations, no id is given out, since the name alone does not tell which of them is meant; the
+     * city is then fetched by its name, and the api picks the city as it always did.
+     *
+     * @param name the name of a city
+     * @return the id of the city, or -1 if the CityNameList does not contain the name or more
+     * than one city has it
+     */
+    public int id(String name) {
+        int i = this.find(name);
+        if (i < 0) {
+            return -1;
+        }
+        // the cities of the same name are next to each other in byName, the shortest name first
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int position = lowerBound(byName, -1, key);
+        if (position + 1 < byName.limit() && compareName(byName.get(position + 1), key) == 0
+            && nameLength(byName.get(position + 1)) == key.length) {
+            return -1;
+        }
+        return ids.get(i);
+    }
+
+    /**
+     * The private helper method looks the name up in the hash table of names.
+     *
+     * @param name the name of a city
+     * @return the entry index of a city of the name, or -1 if there is none
+     */
+    private int find(String name) {
+        int hash = name.hashCode();
+        byte[] key = null;
+        int mask = nameTable.limit() - 1;
+        for (int slot = spread(hash) & mask; nameTable.get(slot) != 0; slot = (slot + 1) & mask) {
+            int i = nameTable.get(slot) - 1;
+            if (nameHashes.get(i) == hash) {
+                if (key == null) {
+                    key = name.getBytes(StandardCharsets.UTF_8);
+                }
+                if (compareName(i, key) == 0 && nameLength(i) == key.length) {
+                    return i;
+                }
+            }
+        }
+        return -1;
     }
 
     /**
-     * This method intends to give out the iterator of ArrayList of cities in the
-     * order of start with the entered city name.
+     * This method intends to give out the iterator of cities in the order of start with the
+     * entered city name. The matching cities are read straight out of the prefix index, so they
+     * come out sorted without any sort at query time.
      *
      * @param name the name of a city that could be incomplete
-     * @return the Iterator of the ArrayList of cities after appropriate sort.
+     * @return the Iterator of the cities after appropriate sort.
      */
-    @SuppressWarnings("unchecked") public Iterator<String> search(String name) {
+    public Iterator<String> search(String name) {
         name =
             name.substring(0, 1).toUpperCase() + name.substring(1); // Capitalize the first letter
-        ArrayList sortedList = this.sortCityByStartWith(name);
-        ArrayList finalList = new ArrayList();
-        for (Object o : sortedList) {
-            finalList.add(((pair) o).city + "     --" + ((pair) o).nation);
-        }
-        Iterator<String> itCity = finalList.iterator();
-        return itCity;
+        byte[] prefix = name.getBytes(StandardCharsets.UTF_8);
+        return new RangeIterator(byName, lowerBound(byName, -1, prefix), prefix, -1);
     }
 
     /**
-     * This method intends to give out the iterator of ArrayList of cities in the
-     * order of start with the entered city name and the corresponded country name.
+     * This method intends to give out the iterator of cities in the order of start with the
+     * entered city name and the corresponded country name.
      *
      * @param name    the name of a city that could be incomplete
      * @param country the name of a country that could be incomplete
-     * @return the Iterator of the ArrayList of cities after appropriate sort.
+     * @return the Iterator of the cities after appropriate sort.
      */
-    @SuppressWarnings("unchecked") public Iterator<String> search(String name, String country) {
+    public Iterator<String> search(String name, String country) {
         name =
             name.substring(0, 1).toUpperCase() + name.substring(1); // Capitalize the first letter
         country = country.toUpperCase(); // Capitalize the first letter
-        ArrayList sortedList = this.sortCityByNationAndStartWith(name, country);
-        ArrayList finalList = new ArrayList();
-        for (Object o : sortedList) {
-            finalList.add(((pair) o).city + "     --" + ((pair) o).nation);
+        byte[] prefix = name.getBytes(StandardCharsets.UTF_8);
+        int code = Arrays.binarySearch(nationDictionary, country);
+        if (code < 0) {
+            return Collections.emptyIterator();
         }
-        Iterator<String> itCity = finalList.iterator();
-        return itCity;
+        return new RangeIterator(byNation, lowerBound(byNation, code, prefix), prefix, code);
     }
 
     /**
-     * The private helper method is used for search methods to help them to sort the
-     * ArrayList of cities in the order of start with the entered city name
+     * This method finds the cities nearest to a place, measured along the surface of the earth.
      *
-     * @param name the name of a city that could be incomplete
-     * @return the sorted list based on the name.
+     * @param latitude  the latitude of the place in degrees
+     * @param longitude the longitude of the place in degrees
+     * @param count     the number of cities to find
+     * @return the cities from the nearest one on, each followed by its nation and distance
+     * @throws IllegalArgumentException when the place is not on the earth or the count is negative
+     */
+    public List<String> nearest(double latitude, double longitude, int count) {
+        checkPlace(latitude, longitude);
+        if (count < 0) {
+            throw new IllegalArgumentException("The count must not be negative: " + count);
+        }
+        if (count == 0) {
+            return new ArrayList<>();
+        }
+        Neighbors neighbors = new Neighbors(Math.min(count, Integer.MAX_VALUE - 1),
+            Double.POSITIVE_INFINITY);
+        double[] point = toPoint(latitude, longitude);
+        searchPlaces(point, 0, size, 0, neighbors);
+        return neighbors.describe();
+    }
+
+    /**
+     * This method finds every city within a distance of a place, measured along the surface of the
+     * earth.
+     *
+     * @param latitude  the latitude of the place in degrees
+     * @param longitude the longitude of the place in degrees
+     * @param km        the distance in kilometers
+     * @return the cities from the nearest one on, each followed by its nation and distance
+     * @throws IllegalArgumentException when the place is not on the earth or the distance is
+     *                                  negative
+     */
+    public List<String> within(double latitude, double longitude, double km) {
+        checkPlace(latitude, longitude);
+        if (!(km >= 0)) {
+            throw new IllegalArgumentException("The distance must not be negative: " + km);
+        }
+        // the straight line through the earth between two places on its surface km apart
+        double chord = 2 * Math.sin(Math.min(km / EARTH_RADIUS, Math.PI) / 2);
+        Neighbors neighbors = new Neighbors(Integer.MAX_VALUE, chord * chord);
+        double[] point = toPoint(latitude, longitude);
+        searchPlaces(point, 0, size, 0, neighbors);
+        return neighbors.describe();
+    }
+
+    /**
+     * The private helper method checks that the latitude and longitude are of a place on the earth.
+     */
+    private static void checkPlace(double latitude, double longitude) {
+        if (!(latitude >= -90 && latitude <= 90)) {
+            throw new IllegalArgumentException("The latitude must be from -90 to 90: " + latitude);
+        }
+        if (!(longitude >= -180 && longitude <= 180)) {
+            throw new IllegalArgumentException(
+                "The longitude must be from -180 to 180: " + longitude);
+        }
+    }
+
+    /**
+     * The private helper method searches the subtree of the k-d tree over byPlace positions from
+     * low to high. The root of the subtree is the middle position, it splits the others by the
+     * coordinate depth % 3, and the side of the split away from the point is only searched when
+     * a city there could still be close enough.
+     */
+    private void searchPlaces(double[] point, int low, int high, int depth, Neighbors neighbors) {
+        if (low >= high) {
+            return;
+        }
+        int mid = (low + high) >>> 1;
+        double dx = point[0] - places.get(mid * 3);
+        double dy = point[1] - places.get(mid * 3 + 1);
+        double dz = point[2] - places.get(mid * 3 + 2);
+        neighbors.offer(byPlace.get(mid), dx * dx + dy * dy + dz * dz);
+        double split = point[depth % 3] - places.get(mid * 3 + depth % 3);
+        if (split < 0) {
+            searchPlaces(point, low, mid, depth + 1, neighbors);
+            if (split * split <= neighbors.bound()) {
+                searchPlaces(point, mid + 1, high, depth + 1, neighbors);
+            }
+        } else {
+            searchPlaces(point, mid + 1, high, depth + 1, neighbors);
+            if (split * split <= neighbors.bound()) {
+                searchPlaces(point, low, mid, depth + 1, neighbors);
+            }
+        }
+    }
+
+    /**
+     * The private helper method builds the k-d tree of places used by nearest and within. The
+     * tree is kept implicitly in byPlace: the middle entry of each range is the root of that range,
+     * with the entries before it not greater and the entries after it not smaller in the
+     * coordinate chosen by the depth, so no links between the nodes are stored.
      */
-    @SuppressWarnings("unchecked") private ArrayList sortCityByStartWith(String name) {
-        ArrayList checkList = new ArrayList();
-        ArrayList sortList = new ArrayList();
-        for (int i = 0; i < city.size(); i++) {
-            if (city.get(i).toString().startsWith(name) && !checkList
-                .contains(city.get(i).toString())) {
-                checkList.add(city.get(i));
-                sortList.add(new pair(city.get(i).toString(), nation.get(i).toString()));
+    private void buildPlaceIndex() {
+        double[][] points = new double[size][];
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            points[i] = toPoint(latitudes.get(i), longitudes.get(i));
+            order[i] = i;
+        }
+        buildPlaces(points, order, 0, size, 0);
+        byPlace = IntBuffer.wrap(order);
+        places = FloatBuffer.allocate(size * 3);
+        for (int i : order) {
+            places.put((float) points[i][0]).put((float) points[i][1]).put((float) points[i][2]);
+        }
+        places.flip();
+    }
+
+    /**
+     * The private helper method puts the median of the range in the middle by quickselect, with
+     * the smaller coordinates before it and the greater after it, and then does the same for the
+     * two halves with the next coordinate.
+     */
+    private static void buildPlaces(double[][] points, int[] order, int low, int high, int depth) {
+        if (high - low < 2) {
+            return;
+        }
+        int mid = (low + high) >>> 1;
+        int axis = depth % 3;
+        int left = low;
+        int right = high - 1;
+        while (left < right) {
+            double pivot = points[order[(left + right) >>> 1]][axis];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (points[order[i]][axis] < pivot) {
+                    i++;
+                }
+                while (points[order[j]][axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i++] = order[j];
+                    order[j--] = swap;
+                }
             }
+            if (mid <= j) {
+                right = j;
+            } else if (mid >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+        buildPlaces(points, order, low, mid, depth + 1);
+        buildPlaces(points, order, mid + 1, high, depth + 1);
+    }
+
+    /**
+     * Turns a latitude and longitude in degrees into a point on the unit sphere, where the
+     * straight distance between two points grows with the distance along the surface.
+     */
+    private static double[] toPoint(double latitude, double longitude) {
+        double phi = Math.toRadians(latitude);
+        double lambda = Math.toRadians(longitude);
+        return new double[] {Math.cos(phi) * Math.cos(lambda), Math.cos(phi) * Math.sin(lambda),
+            Math.sin(phi)};
+    }
+
+    /**
+     * The private helper method builds the two prefix indexes used by the search methods. byName
+     * holds every entry ordered by city name, and byNation holds every entry ordered by nation and
+     * then by city name. Both sorts are stable, so among the equal names the first loaded entry
+     * comes first, which is the one the search methods report.
+     */
+    private void buildIndex() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, this::compareNames);
+        byName = IntBuffer.allocate(size);
+        for (Integer i : order) {
+            byName.put(i);
         }
-        Collections.sort(sortList);
-        return sortList;
+        Arrays.sort(order, (a, b) -> {
+            int compare = Short.compare(nations.get(a), nations.get(b));
+            return compare != 0 ? compare : compareNames(a, b);
+        });
+        byNation = IntBuffer.allocate(size);
+        for (Integer i : order) {
+            byNation.put(i);
+        }
+        byName.flip();
+        byNation.flip();
     }
 
     /**
-     * The private helper method is used for search methods to help them to sort the
-     * ArrayList of cities in the order of start with the entered city name
+     * The private helper method builds the open addressing hash table used by contains over the
+     * hash codes in nameHashes. Each distinct city name takes one slot, and the table is kept at
+     * most half full so that probe sequences stay short.
+     */
+    private void buildNameTable() {
+        int capacity = 2;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        nameTable = IntBuffer.allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            int hash = nameHashes.get(i);
+            int slot = spread(hash) & mask;
+            while (nameTable.get(slot) != 0 && !(nameHashes.get(nameTable.get(slot) - 1) == hash
+                && compareNames(nameTable.get(slot) - 1, i) == 0)) {
+                slot = (slot + 1) & mask;
+            }
+            if (nameTable.get(slot) == 0) {
+                nameTable.put(slot, i + 1);
+            }
+        }
+    }
+
+    /**
+     * Mixes the high bits of a hash code into the low bits, because the table only looks at the
+     * low bits to pick a slot.
+     */
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * The private helper method binary searches the index for the first entry which is not smaller
+     * than the given nation and city name.
      *
-     * @param name    the name of a city that could be incomplete
-     * @param country the name of a country that could be incomplete
-     * @return the sorted list based on the name.
+     * @param index  the index being searched, either byName or byNation
+     * @param nation the nation code of the entry, or -1 when the index is byName
+     * @param name   the UTF-8 bytes of the name of a city that could be incomplete
+     * @return the position of the first entry not smaller than the key in the index
+     */
+    private int lowerBound(IntBuffer index, int nation, byte[] name) {
+        int low = 0;
+        int high = index.limit();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int i = index.get(mid);
+            int compare = nation < 0 ? 0 : Integer.compare(nations.get(i), nation);
+            if (compare == 0) {
+                compare = compareName(i, name);
+            }
+            if (compare < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The private helper method compares the names of two entries byte by byte. On UTF-8 this is
+     * the order of the code points, which is the order of String.compareTo for every name that
+     * stays inside the basic multilingual plane.
+     */
+    private int compareNames(int a, int b) {
+        int offsetA = nameOffsets.get(a);
+        int offsetB = nameOffsets.get(b);
+        int lengthA = nameLength(a);
+        int lengthB = nameLength(b);
+        int length = Math.min(lengthA, lengthB);
+        for (int k = 0; k < length; k++) {
+            int compare = Byte.compareUnsigned(names.get(offsetA + k), names.get(offsetB + k));
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return Integer.compare(lengthA, lengthB);
+    }
+
+    /**
+     * The private helper method compares the name of an entry with the given UTF-8 bytes, looking
+     * only at the first key.length bytes of the name. It gives 0 when the name starts with the key.
      */
-    @SuppressWarnings("unchecked") private ArrayList sortCityByNationAndStartWith(String name,
-        String country) {
-        ArrayList checkList = new ArrayList();
-        ArrayList sortList = new ArrayList();
-        for (int i = 0; i < city.size(); i++) {
-            if (city.get(i).toString().startsWith(name) && !checkList
-                .contains(city.get(i).toString()) && nation.get(i).toString().equals(country)) {
-                checkList.add(city.get(i));
-                sortList.add(new pair(city.get(i).toString(), nation.get(i).toString()));
+    private int compareName(int i, byte[] key) {
+        int offset = nameOffsets.get(i);
+        int length = Math.min(nameLength(i), key.length);
+        for (int k = 0; k < length; k++) {
+            int compare = Byte.compareUnsigned(names.get(offset + k), key[k]);
+            if (compare != 0) {
+                return compare;
             }
         }
-        Collections.sort(sortList);
-        return sortList;
+        return length < key.length ? -1 : 0;
+    }
+
+    private int nameLength(int i) {
+        return nameOffsets.get(i + 1) - nameOffsets.get(i);
+    }
+
+    private String cityAt(int i) {
+        byte[] name = new byte[nameLength(i)];
+        names.get(nameOffsets.get(i), name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the number of bytes taken by the columns in the index file, after the dictionary
+     */
+    private static int columnBytes(int size, int tableLength, int nameBytes) {
+        return (size + 1) * 4 + size * 4 * 7 + size * 12 + tableLength * 4 + size * 2 + nameBytes;
+    }
+
+    private static void putInts(ByteBuffer file, IntBuffer column) {
+        file.asIntBuffer().put(column.duplicate().rewind());
+        file.position(file.position() + column.limit() * 4);
     }
 
+    private static void putFloats(ByteBuffer file, FloatBuffer column) {
+        file.asFloatBuffer().put(column.duplicate().rewind());
+        file.position(file.position() + column.limit() * 4);
+    }
 
     /**
-     * The city-nation pair that will be loaded to the final ArrayList of
-     * CityNameList to allow access of both city and nation.
+     * Moves the position of the file buffer up to the next multiple of four.
      */
-    public static class pair implements Comparable, java.io.Serializable {
-        public String city;
-        public String nation;
+    private static void align(ByteBuffer file) {
+        file.position((file.position() + 3) & ~3);
+    }
+
+    /**
+     * Cuts the next length bytes out of the file buffer as a view and moves past them.
+     */
+    private static ByteBuffer slice(ByteBuffer file, int length) {
+        ByteBuffer slice = file.slice(file.position(), length);
+        file.position(file.position() + length);
+        return slice;
+    }
+
+    /**
+     * This class collects the columns while the city list is being streamed in. The columns grow
+     * by doubling like an ArrayList and are trimmed by load once the whole list has been read.
+     */
+    private static class Loader {
+        private int size;
+        private byte[] names = new byte[0];
+        private int[] nameOffsets = new int[1];
+        private short[] nations = new short[0];
+        private int[] ids = new int[0];
+        private float[] longitudes = new float[0];
+        private float[] latitudes = new float[0];
+        private int[] nameHashes = new int[0]; // the String hash code of each name
+        private String[] nationDictionary;
+        private final HashMap<String, Integer> loadingNations = new HashMap<>();
 
         /**
-         * The inner class constructor instantiates the pair of city and its
-         * corresponded nation.
-         *
-         * @param city   the name of a city
-         * @param nation the name of a nation
+         * Appends one city read from the list to the columns.
          */
-        public pair(String city, String nation) {
-            this.city = city;
-            this.nation = nation;
+        private void add(String name, String country, int id, double longitude,
+            double latitude) {
+            if (size == ids.length) {
+                int capacity = Math.max(16, size * 2);
+                nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+                nations = Arrays.copyOf(nations, capacity);
+                nameHashes = Arrays.copyOf(nameHashes, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+                longitudes = Arrays.copyOf(longitudes, capacity);
+                latitudes = Arrays.copyOf(latitudes, capacity);
+            }
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            int offset = nameOffsets[size];
+            if (offset + bytes.length > names.length) {
+                names = Arrays.copyOf(names, Math.max(offset + bytes.length, names.length * 2));
+            }
+            System.arraycopy(bytes, 0, names, offset, bytes.length);
+            nameOffsets[size + 1] = offset + bytes.length;
+            Integer code = loadingNations.get(country);
+            if (code == null) {
+                code = loadingNations.size();
+                loadingNations.put(country, code);
+            }
+            nations[size] = (short) (int) code;
+            ids[size] = id;
+            longitudes[size] = (float) longitude;
+            latitudes[size] = (float) latitude;
+            nameHashes[size] = name.hashCode(); // the name itself is not kept
+            size++;
         }
 
         /**
-         * The override method used to help compare the city of this pair when the pair
-         * is called in the Collection.sort() method.
+         * Sorts the nations seen while loading into nationDictionary and renumbers the nation of
+         * each city, so that comparing two codes is the same as comparing the two nations.
          *
-         * @param o the object of pair being compared with itself
+         * @return the renumbered nation codes of the cities
+         */
+        private short[] buildNationDictionary() {
+            nationDictionary = loadingNations.keySet().toArray(new String[0]);
+            Arrays.sort(nationDictionary);
+            short[] renumber = new short[nationDictionary.length];
+            for (int i = 0; i < nationDictionary.length; i++) {
+                renumber[loadingNations.get(nationDictionary[i])] = (short) i;
+            }
+            short[] codes = new short[size];
+            for (int i = 0; i < size; i++) {
+                codes[i] = renumber[nations[i]];
+            }
+            return codes;
+        }
+    }
+
+    /**
+     * This class collects the cities found by a search of the k-d tree by their squared straight
+     * distance to the place. It holds at most count cities and only the ones within the limit, and
+     * bound tells how close a city has to be to still get in. With a count, the cities are kept
+     * sorted as they come; without one, they are only sorted once the search is done.
+     */
+    private class Neighbors {
+        private final int count;
+        private final double limit;
+        private double[] distances = new double[16];
+        private int[] entries = new int[16];
+        private int found;
+
+        private Neighbors(int count, double limit) {
+            this.count = count;
+            this.limit = limit;
+        }
+
+        /**
+         * @return the squared straight distance a city has to be within to be collected
          */
-        @Override public int compareTo(Object o) {
-            return city.compareTo(((pair) o).city);
+        private double bound() {
+            return found < count ? limit : distances[found - 1];
         }
 
+        /**
+         * Collects the city when it is close enough, dropping the farthest one when full.
+         */
+        private void offer(int entry, double distance) {
+            if (count == 0 || distance > bound()) {
+                return;
+            }
+            if (found == distances.length && found < count) {
+                distances = Arrays.copyOf(distances, found * 2);
+                entries = Arrays.copyOf(entries, found * 2);
+            }
+            int k = found < count ? found++ : found - 1;
+            while (count != Integer.MAX_VALUE && k > 0 && distances[k - 1] > distance) {
+                distances[k] = distances[k - 1];
+                entries[k] = entries[k - 1];
+                k--;
+            }
+            distances[k] = distance;
+            entries[k] = entry;
+        }
+
+        /**
+         * @return each city collected with its nation and its distance along the surface
+         */
+        private List<String> describe() {
+            Integer[] order = new Integer[found];
+            for (int k = 0; k < found; k++) {
+                order[k] = k;
+            }
+            if (count == Integer.MAX_VALUE) {
+                Arrays.sort(order, (a, b) -> Double.compare(distances[a], distances[b]));
+            }
+            List<String> cities = new ArrayList<>(found);
+            for (int k : order) {
+                int i = entries[k];
+                double km = 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(distances[k]) / 2));
+                cities.add(cityAt(i) + "     --" + nationDictionary[nations.get(i)] + "     "
+                    + String.format("%.1f km", km));
+            }
+            return cities;
+        }
     }
 
+    /**
+     * The iterator walks one of the prefix indexes from the lower bound of the searched name and
+     * stops at the first entry that no longer starts with it. The repeated city names are next to
+     * each other in the index, so only the first one of them is given out.
+     */
+    private class RangeIterator implements Iterator<String> {
+        private final IntBuffer index;
+        private final byte[] prefix;
+        private final int nation;
+        private int position;
+
+        private RangeIterator(IntBuffer index, int position, byte[] prefix, int nation) {
+            this.index = index;
+            this.position = position;
+            this.prefix = prefix;
+            this.nation = nation;
+        }
+
+        @Override public boolean hasNext() {
+            return position < index.limit() && compareName(index.get(position), prefix) == 0 && (
+                nation < 0 || nations.get(index.get(position)) == nation);
+        }
+
+        @Override public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int i = index.get(position++);
+            while (position < index.limit() && compareNames(index.get(position), i) == 0) {
+                position++;
+            }
+            return cityAt(i) + "     --" + nationDictionary[nations.get(i)];
+        }
+    }
 }
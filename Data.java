@@ -6,78 +6,164 @@
 // TA: Harper
 // Lecturer: Florian Heimerl
 // Notes to Grader: The previous of this file has a problem when reading the api, so that I rewrite
-// this class by using the specific tool of json-simple-1.1.jar to read more precisely for each data.
-// The way I used is similar to the way I wrote in CityNameList. And All of our classes implements the
-// java.io.Serializable to serialize the file into caches to store the data for next time of use.
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
+// this class to send the requests itself and hand each response to WeatherParser, which reads the
+// data straight from the bytes of the response. Only the ParseException of json-simple is still
+// used, for a response that cannot be read. Data is not java.io.Serializable, since the caches are
+// written by WeatherLog and no cache holds the source the weather came from.
 import org.json.simple.parser.ParseException;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.URL;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
- * This class serves to load the specific weather data from the api.
+ * This class serves to load the specific weather data from the api. It is the WeatherSource the
+ * app uses, and can be pointed at any server that answers like the api, such as the
+ * LocalWeatherServer.
  *
  * @author Tianwei Bao, Jiahe Jin
  */
-public class Data implements java.io.Serializable {
+public class Data implements WeatherSource {
+    // the root of the api, which can be pointed at a stand-in server with -Dweatherapp.api=...
+    private static final String API =
+        System.getProperty("weatherapp.api", "http://api.openweathermap.org/data/2.5");
+    // the key of the api, given with -Dweatherapp.apiKey=... or the environment variable
+    // WEATHERAPP_API_KEY, or else the key of the team
+    private static final String KEY = System.getProperty("weatherapp.apiKey",
+        System.getenv().getOrDefault("WEATHERAPP_API_KEY", "b6656b936ee428f356f6db943c263655"));
+    private static final String QUERY =
+        "?units=metric&appid=" + URLEncoder.encode(KEY, StandardCharsets.UTF_8);
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration READ_TIMEOUT = Duration.ofSeconds(10);
+
+    // one client for the whole app, so its pool of keep-alive connections is reused by every fetch
+    private static final HttpClient client =
+        HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(CONNECT_TIMEOUT).build();
+
+    private final String api; // the root of the api, such as http://host/data/2.5
+
+    /**
+     * The default constructor loads the weather data from the openweathermap api, or from the
+     * root given by the system property weatherapp.api. The api key is the one given by the system
+     * property weatherapp.apiKey or the environment variable WEATHERAPP_API_KEY, if any.
+     */
+    public Data() {
+        this(API);
+    }
+
+    /**
+     * This constructor loads the weather data from a server that answers like the api.
+     *
+     * @param api the root of the api, such as http://localhost:8080/data/2.5
+     */
+    public Data(String api) {
+        this.api = api;
+    }
 
     /**
      * This method will organize the weather information of the specific city into the Weather Object
      *
      * @param name the name of a city
      * @return Weather Object which includes all weather information of this city
-     * @throws IOException for the FileReader and readLine
+     * @throws IOException for the connection to the api, or when it answers with an error
      */
-    public Weather update(String name) throws IOException, ParseException {
-
-        // Read Information of a city from the api
-        URL web = new URL("http://api.openweathermap.org/data/2.5/weather?q=" + name
-            + "&units=metric&appid=b6656b936ee428f356f6db943c263655");
-        BufferedReader content = new BufferedReader(new InputStreamReader(web.openStream()));
-        String inputLine = content.readLine();
-        JSONParser jsonParser = new JSONParser();
-        JSONObject jsonObject = (JSONObject) jsonParser.parse(inputLine);
+    @Override public Weather update(String name) throws IOException, ParseException {
+        HttpResponse<byte[]> response;
+        try {
+            response = client.send(request(name), HttpResponse.BodyHandlers.ofByteArray());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted when fetching " + name);
+        }
+        return parse(response);
+    }
 
-        // Get specific data from the jsonObject
-        String cityName = jsonObject.get("name").toString(); // 1) Get cityName
-        String longitude =
-            ((JSONObject) jsonObject.get("coord")).get("lon").toString(); // 2) Get longitude
-        String latitude =
-            ((JSONObject) jsonObject.get("coord")).get("lat").toString(); // 3) Get Latitude
-        String weatherDescription =
-            ((JSONObject) ((JSONArray) jsonObject.get("weather")).get(0)).get("description")
-                .toString(); // 4) Get Weather Description
-        String temperature =
-            ((JSONObject) jsonObject.get("main")).get("temp").toString(); // 5) Get Temperature
-        String apparentTemperature = ((JSONObject) jsonObject.get("main")).get("feels_like")
-            .toString(); // 6) Get apparentTemperature
-        String minTemperature = ((JSONObject) jsonObject.get("main")).get("temp_min")
-            .toString(); // 7) Get minTemperature
-        String maxTemperature = ((JSONObject) jsonObject.get("main")).get("temp_max")
-            .toString(); // 8) Get maxTemperature
-        String pressure =
-            ((JSONObject) jsonObject.get("main")).get("pressure").toString(); // 9) Get Pressure
-        String humidity =
-            ((JSONObject) jsonObject.get("main")).get("humidity").toString();  // 10) Get Humidity
-        String windSpeed =
-            ((JSONObject) jsonObject.get("wind")).get("speed").toString(); // 11) Get Wind speed
-        String visibility = jsonObject.get("visibility").toString(); // 12) Get Visibility
+    /**
+     * This method fetches the weather information of the specific city without blocking the
+     * caller. The future fails with the same IOException or ParseException that update throws,
+     * wrapped in a CompletionException.
+     *
+     * @param name the name of a city
+     * @return the future of the Weather Object which includes all weather information of this city
+     */
+    @Override public CompletableFuture<Weather> updateAsync(String name) {
+        return client.sendAsync(request(name), HttpResponse.BodyHandlers.ofByteArray())
+            .thenApply(response -> {
+                try {
+                    return parse(response);
+                } catch (IOException | ParseException e) {
+                    throw new CompletionException(e);
+                }
+            });
+    }
 
-        Weather city =
-            new Weather(cityName, Double.parseDouble(longitude), Double.parseDouble(latitude),
-                weatherDescription, Double.parseDouble(temperature),
-                Double.parseDouble(apparentTemperature), Double.parseDouble(minTemperature),
-                Double.parseDouble(maxTemperature), Double.parseDouble(pressure),
-                Double.parseDouble(humidity), Double.parseDouble(windSpeed),
-                Double.parseDouble(visibility));
-        return city;
+    /**
+     * This method fetches the weather information of up to GROUP_SIZE cities in one request to
+     * the group endpoint of the api, without blocking the caller. A city the api does not know is
+     * left out of the answer.
+     *
+     * @param ids the openweathermap ids of the cities
+     * @return the future of the Weather Objects of the cities by their ids, which fails with an
+     * IOException or ParseException wrapped in a CompletionException
+     * @throws IllegalArgumentException when there are no ids or more than GROUP_SIZE
+     */
+    @Override public CompletableFuture<Map<Integer, Weather>> updateGroupAsync(int[] ids) {
+        if (ids.length == 0 || ids.length > GROUP_SIZE) {
+            throw new IllegalArgumentException(
+                "The group endpoint takes 1 to " + GROUP_SIZE + " cities, not " + ids.length);
+        }
+        StringBuilder list = new StringBuilder();
+        for (int id : ids) {
+            list.append(list.length() == 0 ? "" : ",").append(id);
+        }
+        URI uri = URI.create(api + "/group" + QUERY + "&id=" + list);
+        HttpRequest request = HttpRequest.newBuilder(uri).timeout(READ_TIMEOUT).GET().build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+            .thenApply(response -> {
+                try {
+                    checkStatus(response);
+                    return WeatherParser.parseGroup(response.body());
+                } catch (IOException | ParseException e) {
+                    throw new CompletionException(e);
+                }
+            });
     }
 
+    /**
+     * The private helper method builds the api request of the specific city.
+     */
+    private HttpRequest request(String name) {
+        URI uri = URI.create(api + "/weather" + QUERY + "&q="
+            + URLEncoder.encode(name, StandardCharsets.UTF_8));
+        return HttpRequest.newBuilder(uri).timeout(READ_TIMEOUT).GET().build();
+    }
 
+    /**
+     * The private helper method reads the Weather Object out of the api response.
+     */
+    private static Weather parse(HttpResponse<byte[]> response)
+        throws IOException, ParseException {
+        checkStatus(response);
+        return WeatherParser.parse(response.body());
+    }
 
+    /**
+     * The private helper method throws when the api answers with an error.
+     */
+    private static void checkStatus(HttpResponse<?> response) throws IOException {
+        if (response.statusCode() != 200) {
+            throw new StatusException(response.statusCode(), "Server returned HTTP response code: "
+                + response.statusCode() + " for URL: " + response.uri());
+        }
+    }
 }
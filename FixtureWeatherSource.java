@@ -0,0 +1,224 @@
+// --== CS400 File Header Information ==--
+// Name: Jiahe Jin
+// Email: jjin82@wisc.edu
+// Team: JB
+// Role: Back End Developer
+// TA: Harper
+// Lecturer: Florian Heimerl
+// Notes to Grader: N/A
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is a WeatherSource that makes up the weather information in memory instead of asking
+ * the api, so the fetch path of the app can be run and measured without the network. A city put
+ * into the fixture is given out as it was put; any other city gets weather worked out from its
+ * name, the same each time.
+ *
+ * <p>The fixture can act like a slow or failing api. Every call waits for the latency before it
+ * answers, fails with HTTP status 500 at the error rate, and fails with HTTP status 429 when it
+ * goes beyond the rate limit. The errors are drawn from a Random of a fixed seed, so a run that
+ * makes the same calls in the same order meets the same errors.
+ *
+ * @author Jiahe Jin
+ */
+public class FixtureWeatherSource implements WeatherSource {
+    private static final String[] DESCRIPTIONS = {"clear sky", "few clouds", "scattered clouds",
+        "broken clouds", "light rain", "moderate rain", "thunderstorm", "snow", "mist"};
+
+    private final Random random;
+    private final ConcurrentHashMap<String, Weather> byName = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Weather> byId = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private volatile Duration latency = Duration.ZERO;
+    private volatile double errorRate = 0;
+    private int rateLimit = Integer.MAX_VALUE; // calls allowed in each rate window
+    private Duration rateWindow = Duration.ofSeconds(1);
+    private long windowStart = 0; // System.nanoTime of the start of the current rate window
+    private int windowCalls = 0;
+
+    /**
+     * The default constructor builds a fixture that answers at once and never fails.
+     */
+    public FixtureWeatherSource() {
+        this(0);
+    }
+
+    /**
+     * This constructor builds a fixture that answers at once and never fails, with the seed of the
+     * Random the errors are drawn from.
+     *
+     * @param seed the seed of the errors
+     */
+    public FixtureWeatherSource(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * This method puts the weather information of a city into the fixture, given out for its name
+     * and for its id from then on.
+     *
+     * @param id      the openweathermap id of the city
+     * @param weather the Weather Object of the city
+     */
+    public void put(int id, Weather weather) {
+        byName.put(weather.getCity().toLowerCase(), weather);
+        byId.put(id, weather);
+    }
+
+    /**
+     * This method sets how long every call waits before it answers.
+     *
+     * @param latency the time of each call
+     */
+    public void setLatency(Duration latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * This method sets the share of calls that fail with HTTP status 500.
+     *
+     * @param errorRate from 0 for no errors to 1 for every call to fail
+     * @throws IllegalArgumentException when the rate is not between 0 and 1
+     */
+    public void setErrorRate(double errorRate) {
+        if (!(errorRate >= 0 && errorRate <= 1)) {
+            throw new IllegalArgumentException("The error rate must be from 0 to 1.");
+        }
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * This method sets the rate limit. The calls beyond the limit in one window fail with HTTP
+     * status 429, like the api does when a key makes too many calls.
+     *
+     * @param calls  the number of calls allowed in each window
+     * @param window the length of the window
+     */
+    public synchronized void setRateLimit(int calls, Duration window) {
+        this.rateLimit = calls;
+        this.rateWindow = window;
+        this.windowCalls = 0;
+    }
+
+    /**
+     * This method gives out the number of calls made to the fixture, including the failed ones.
+     *
+     * @return the number of calls
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    @Override public Weather update(String name) throws IOException {
+        IOException failure = this.admit();
+        try {
+            Thread.sleep(latency.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted when fetching " + name);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return this.weatherOf(name);
+    }
+
+    @Override public CompletableFuture<Weather> updateAsync(String name) {
+        IOException failure = this.admit();
+        return CompletableFuture.supplyAsync(() -> {
+            if (failure != null) {
+                throw new CompletionException(failure);
+            }
+            return this.weatherOf(name);
+        }, this.delayed());
+    }
+
+    @Override public CompletableFuture<Map<Integer, Weather>> updateGroupAsync(int[] ids) {
+        if (ids.length == 0 || ids.length > GROUP_SIZE) {
+            throw new IllegalArgumentException(
+                "The group endpoint takes 1 to " + GROUP_SIZE + " cities, not " + ids.length);
+        }
+        IOException failure = this.admit();
+        return CompletableFuture.supplyAsync(() -> {
+            if (failure != null) {
+                throw new CompletionException(failure);
+            }
+            Map<Integer, Weather> cities = new HashMap<>();
+            for (int id : ids) {
+                Weather weather = byId.get(id);
+                cities.put(id, weather != null ? copy(weather) : this.weatherOf("City" + id));
+            }
+            return cities;
+        }, this.delayed());
+    }
+
+    /**
+     * The private helper method counts a call and decides whether it fails.
+     *
+     * @return the exception the call fails with, or null when it succeeds
+     */
+    private synchronized IOException admit() {
+        calls.incrementAndGet();
+        long now = System.nanoTime();
+        if (windowCalls == 0 || now - windowStart >= rateWindow.toNanos()) {
+            windowStart = now;
+            windowCalls = 0;
+        }
+        if (++windowCalls > rateLimit) {
+            return new StatusException(429, "Server returned HTTP response code: 429 for the "
+                + "fixture, over " + rateLimit + " calls in " + rateWindow);
+        }
+        if (errorRate > 0 && random.nextDouble() < errorRate) {
+            return new StatusException(500, "Server returned HTTP response code: 500 for the "
+                + "fixture");
+        }
+        return null;
+    }
+
+    /**
+     * The private helper method gives out the executor that runs an answer after the latency.
+     */
+    private Executor delayed() {
+        return CompletableFuture.delayedExecutor(latency.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The private helper method gives out a fresh Weather Object of the city, marked now.
+     */
+    private Weather weatherOf(String name) {
+        Weather weather = byName.get(name.toLowerCase());
+        if (weather != null) {
+            return copy(weather);
+        }
+        Random numbers = new Random(name.toLowerCase().hashCode());
+        double temperature = round(numbers.nextGaussian() * 10 + 15);
+        return new Weather(name, round(numbers.nextDouble() * 360 - 180),
+            round(numbers.nextDouble() * 180 - 90),
+            DESCRIPTIONS[numbers.nextInt(DESCRIPTIONS.length)], temperature,
+            round(temperature - numbers.nextDouble() * 3), round(temperature - 2),
+            round(temperature + 2), 980 + numbers.nextInt(60), numbers.nextInt(101),
+            round(numbers.nextDouble() * 15), 1000 * (1 + numbers.nextInt(10)));
+    }
+
+    private static Weather copy(Weather w) {
+        return new Weather(w.getCity(), w.getLongitude(), w.getLatitude(),
+            w.getWeatherDescription(), w.getTemperature(), w.getApparentTemperature(),
+            w.getMinTemperature(), w.getMaxTemperature(), w.getPressure(), w.getHumidity(),
+            w.getWindSpeed(), w.getVisibility());
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+}
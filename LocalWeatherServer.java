@@ -0,0 +1,252 @@
+// --== CS400 File Header Information ==--
+// Name: Jiahe Jin
+// Email: jjin82@wisc.edu
+// Team: JB
+// Role: Back End Developer
+// TA: Harper
+// Lecturer: Florian Heimerl
+// Notes to Grader: N/A
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class is a stand-in for the openweathermap api on this machine. It answers the weather and
+ * group endpoints the way the api does, with the Weather Objects of a WeatherSource, so a Data
+ * pointed at it runs the whole fetch path over HTTP without the network. An error of the source,
+ * such as the 429 and 500 of a FixtureWeatherSource, is answered with its HTTP status.
+ *
+ * <p>Run on its own, it serves a FixtureWeatherSource with the latency, error rate and rate limit
+ * given on the command line, and the app is pointed at it with -Dweatherapp.api=....
+ *
+ * @author Jiahe Jin
+ */
+public class LocalWeatherServer implements AutoCloseable {
+    private static final String ROOT = "/data/2.5";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final WeatherSource source;
+
+    /**
+     * The constructor binds the server to the port of the loopback address. Nothing is answered
+     * until start is called.
+     *
+     * @param source where the answers come from
+     * @param port   the port to listen on, or 0 for any free port
+     * @throws IOException when the port cannot be bound
+     */
+    public LocalWeatherServer(WeatherSource source, int port) throws IOException {
+        this.source = source;
+        this.server = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "weather-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext(ROOT + "/weather", this::weather);
+        server.createContext(ROOT + "/group", this::group);
+    }
+
+    /**
+     * This method starts answering requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * This method stops the server right away.
+     */
+    @Override public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * This method gives out the root of the api served, to be given to Data.
+     *
+     * @return the root of the api, such as http://127.0.0.1:8080/data/2.5
+     */
+    public String getApi() {
+        InetSocketAddress address = server.getAddress();
+        return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort() + ROOT;
+    }
+
+    /**
+     * The private helper method answers the weather endpoint, which takes the name of a city in
+     * the parameter q.
+     */
+    private void weather(HttpExchange exchange) throws IOException {
+        String name = parameter(exchange, "q");
+        if (name == null) {
+            respond(exchange, 400, error(400, "Nothing to geocode"));
+            return;
+        }
+        try {
+            StringBuilder json = new StringBuilder();
+            writeCity(json, source.update(name), -1);
+            respond(exchange, 200, json.toString());
+        } catch (IOException | ParseException e) {
+            respond(exchange, statusOf(e), error(statusOf(e), e.getMessage()));
+        }
+    }
+
+    /**
+     * The private helper method answers the group endpoint, which takes the ids of the cities in
+     * the parameter id, separated by commas.
+     */
+    private void group(HttpExchange exchange) throws IOException {
+        String list = parameter(exchange, "id");
+        int[] ids;
+        try {
+            String[] parts = list == null ? new String[0] : list.split(",");
+            ids = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                ids[i] = Integer.parseInt(parts[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, error(400, "invalid id list"));
+            return;
+        }
+        if (ids.length == 0 || ids.length > WeatherSource.GROUP_SIZE) {
+            respond(exchange, 400, error(400, "invalid id list"));
+            return;
+        }
+        try {
+            Map<Integer, Weather> cities = source.updateGroupAsync(ids).join();
+            StringBuilder json = new StringBuilder("{\"cnt\":").append(cities.size())
+                .append(",\"list\":[");
+            boolean first = true;
+            for (int id : ids) {
+                Weather weather = cities.get(id);
+                if (weather != null) {
+                    json.append(first ? "" : ",");
+                    writeCity(json, weather, id);
+                    first = false;
+                }
+            }
+            respond(exchange, 200, json.append("]}").toString());
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            respond(exchange, statusOf(cause), error(statusOf(cause), cause.getMessage()));
+        }
+    }
+
+    /**
+     * The private helper method writes the Weather Object the way the api does, with the id of
+     * the city when it is not -1.
+     */
+    private static void writeCity(StringBuilder json, Weather w, int id) {
+        json.append("{\"coord\":{\"lon\":").append(w.getLongitude()).append(",\"lat\":")
+            .append(w.getLatitude()).append("},\"weather\":[{\"description\":");
+        writeString(json, w.getWeatherDescription());
+        json.append("}],\"main\":{\"temp\":").append(w.getTemperature())
+            .append(",\"feels_like\":").append(w.getApparentTemperature())
+            .append(",\"temp_min\":").append(w.getMinTemperature())
+            .append(",\"temp_max\":").append(w.getMaxTemperature())
+            .append(",\"pressure\":").append(w.getPressure())
+            .append(",\"humidity\":").append(w.getHumidity())
+            .append("},\"visibility\":").append(w.getVisibility())
+            .append(",\"wind\":{\"speed\":").append(w.getWindSpeed()).append("},");
+        if (id != -1) {
+            json.append("\"id\":").append(id).append(',');
+        }
+        json.append("\"name\":");
+        writeString(json, w.getCity());
+        json.append(",\"cod\":200}");
+    }
+
+    private static void writeString(StringBuilder json, String text) {
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private static String error(int status, String message) {
+        StringBuilder json = new StringBuilder("{\"cod\":\"").append(status).append("\",")
+            .append("\"message\":");
+        writeString(json, message == null ? "" : message);
+        return json.append('}').toString();
+    }
+
+    private static int statusOf(Throwable e) {
+        return e instanceof WeatherSource.StatusException
+            ? ((WeatherSource.StatusException) e).getStatus() : 502;
+    }
+
+    /**
+     * The private helper method gives out the decoded value of a parameter of the query, or null
+     * when the query does not have it.
+     */
+    private static String parameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0 && pair.substring(0, equals).equals(name)) {
+                return URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+        throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * This method runs the server with a FixtureWeatherSource until it is killed.
+     *
+     * @param args the port (8080 by default), then the latency in milliseconds, the error rate
+     *             from 0 to 1 and the number of calls allowed a minute, all optional
+     * @throws IOException when the port cannot be bound
+     */
+    public static void main(String[] args) throws IOException {
+        FixtureWeatherSource fixture = new FixtureWeatherSource();
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        if (args.length > 1) {
+            fixture.setLatency(Duration.ofMillis(Long.parseLong(args[1])));
+        }
+        if (args.length > 2) {
+            fixture.setErrorRate(Double.parseDouble(args[2]));
+        }
+        if (args.length > 3) {
+            fixture.setRateLimit(Integer.parseInt(args[3]), Duration.ofMinutes(1));
+        }
+        LocalWeatherServer server = new LocalWeatherServer(fixture, port);
+        server.start();
+        System.out.println("weather api stand-in listening on " + server.getApi());
+    }
+}
@@ -5,9 +5,13 @@
 // Role: Back End Developer
 // TA: Harper
 // Lecturer: Florian Heimerl
-// Notes to Grader: All of our classes implements the java.io.Serializable to serialize the file into
-// caches to store the data for next time of use.
-import java.util.LinkedList;
+// Notes to Grader: The tree is not java.io.Serializable, since the WeatherTree built on it is
+// cached by WeatherLog, which writes each city as a record instead of the whole tree.
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
 
 /**
  * Binary Search Tree implementation with a Node inner class for representing
@@ -15,11 +19,42 @@ import java.util.LinkedList;
  * method to build a binary search tree, and its toString method to display
  * the level order (breadth first) traversal of values in that tree.
  *
+ * <p>The values are ordered by a key taken out of each value, and the keys are
+ * compared with the comparator given to the constructor. The comparator
+ * decides which keys are the same, so for example a case insensitive
+ * comparator lets get find a value under any case of its key.
+ *
+ * <p>The values can be walked in the order of their keys with iterator and
+ * range, and the nearest values to a key are found with floor and ceiling.
+ * The walk follows the parent links from one node to the next, so it needs
+ * no stack, and a range of k values costs O(log n + k).
+ *
+ * <p>Each node also counts the nodes of its subtree, which lets rank and select
+ * find the position of a key, or the value at a position, in O(log n).
+ *
+ * @param <K> the type of the keys the values are ordered by
+ * @param <T> the type of the values stored in the tree
  * @author Jiahe Jin
  */
-public class RedBlackTree<T extends Comparable<T>> implements java.io.Serializable {
+public class RedBlackTree<K, T> implements Iterable<T> {
+    // twice the log2 of the largest size, the height no red black tree can exceed
+    protected static final int MAX_HEIGHT = 64;
 
     protected Node<T> root; // reference to root node of tree, null when empty
+    protected int size; // number of nodes in the tree
+    private final Function<? super T, ? extends K> keyOf; // takes the key out of a value
+    private final Comparator<? super K> comparator; // orders the keys
+
+    /**
+     * Creates an empty tree whose values are ordered by the given key.
+     *
+     * @param keyOf      takes the key out of a value, it must not change while the value is stored
+     * @param comparator orders the keys, values with equal keys are the same value to this tree
+     */
+    public RedBlackTree(Function<? super T, ? extends K> keyOf, Comparator<? super K> comparator) {
+        this.keyOf = keyOf;
+        this.comparator = comparator;
+    }
 
     /**
      * Performs a naive insertion into a binary search tree: adding the input
@@ -29,7 +64,7 @@ public class RedBlackTree<T extends Comparable<T>> implements java.io.Serializab
      *
      * @param data to be added into this binary search tree
      * @throws NullPointerException     when the provided data argument is null
-     * @throws IllegalArgumentException when the tree already contains data
+     * @throws IllegalArgumentException when the tree already contains the key of data
      */
     public void insert(T data) throws NullPointerException, IllegalArgumentException {
         // null references cannot be stored within this tree
@@ -43,6 +78,336 @@ public class RedBlackTree<T extends Comparable<T>> implements java.io.Serializab
         else
             insertHelper(newNode, root); // recursively insert into subtree
         this.root.isBlack = true; // always set the root node of RBT to be black
+        size++;
+    }
+
+    /**
+     * @return the number of values stored in this tree
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finds the value stored under the key. The search walks down from the root
+     * in a loop and creates no objects, so it is cheap to call on every read.
+     * It stops after MAX_HEIGHT steps, which no red black tree reaches, so a
+     * search racing a writer cannot loop forever on a tree changed under it.
+     *
+     * @param key the key of the value, compared with the comparator of this tree
+     * @return the value with an equal key, or null when there is none
+     */
+    public T get(K key) {
+        Node<T> node = getNode(key);
+        return node == null ? null : node.data;
+    }
+
+    /**
+     * Finds the node of the value stored under the key, in the same way as get.
+     *
+     * @param key the key of the value, compared with the comparator of this tree
+     * @return the node whose value has an equal key, or null when there is none
+     */
+    protected Node<T> getNode(K key) {
+        Node<T> current = root;
+        for (int depth = 0; current != null && depth < MAX_HEIGHT; depth++) {
+            int compare = comparator.compare(key, keyOf.apply(current.data));
+            if (compare == 0) {
+                return current;
+            }
+            current = compare < 0 ? current.leftChild : current.rightChild;
+        }
+        return null;
+    }
+
+    /**
+     * Checks if the node still holds a value under the key. A node that has been
+     * removed from the tree does not.
+     *
+     * @param node a node that was found in this tree
+     * @param key  the key the node was found under
+     * @return true when the node is in the tree and its value has an equal key
+     */
+    protected boolean holds(Node<T> node, K key) {
+        return (node == root || node.parent != null)
+            && comparator.compare(key, keyOf.apply(node.data)) == 0;
+    }
+
+    /**
+     * Finds the value with the greatest key less than or equal to the key.
+     *
+     * @param key the key to search for
+     * @return the value, or null when every key of this tree is greater
+     */
+    public T floor(K key) {
+        Node<T> current = root;
+        Node<T> found = null;
+        while (current != null) {
+            int compare = comparator.compare(key, keyOf.apply(current.data));
+            if (compare == 0) {
+                return current.data;
+            }
+            if (compare > 0) {
+                found = current; // a candidate, a closer one may be on the right
+                current = current.rightChild;
+            } else {
+                current = current.leftChild;
+            }
+        }
+        return found == null ? null : found.data;
+    }
+
+    /**
+     * Finds the value with the least key greater than or equal to the key.
+     *
+     * @param key the key to search for
+     * @return the value, or null when every key of this tree is less
+     */
+    public T ceiling(K key) {
+        Node<T> node = ceilingNode(key);
+        return node == null ? null : node.data;
+    }
+
+    /**
+     * Gives an iterator over all values of this tree in the order of their keys.
+     * The tree must not be changed while the iterator is used.
+     *
+     * @return the iterator
+     */
+    @Override public Iterator<T> iterator() {
+        return range(null, null);
+    }
+
+    /**
+     * Gives an iterator over the values whose keys are from the from key,
+     * inclusive, up to the to key, exclusive, in the order of their keys. The
+     * first value is found by one descent and each next one by following the
+     * links to its successor, so nothing is visited outside of the range. The
+     * tree must not be changed while the iterator is used.
+     *
+     * @param from the least key of the range, or null to start from the first value
+     * @param to   the key the range ends before, or null to go to the last value
+     * @return the iterator
+     */
+    public Iterator<T> range(K from, K to) {
+        Node<T> first;
+        if (from != null) {
+            first = ceilingNode(from);
+        } else {
+            first = root;
+            while (first != null && first.leftChild != null) {
+                first = first.leftChild;
+            }
+        }
+        return new InOrderIterator(first, to);
+    }
+
+    /**
+     * Counts the values whose keys are less than the key, which is the position
+     * the key has or would have in the order of keys.
+     *
+     * @param key the key to find the position of
+     * @return the number of values with smaller keys
+     */
+    public int rank(K key) {
+        Node<T> current = root;
+        int rank = 0;
+        while (current != null) {
+            if (comparator.compare(key, keyOf.apply(current.data)) <= 0) {
+                current = current.leftChild;
+            } else {
+                rank += count(current.leftChild) + 1;
+                current = current.rightChild;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Finds the value at a position in the order of keys.
+     *
+     * @param rank the position, starting from 0 for the value with the least key
+     * @return the value, or null when the position is not in the tree
+     */
+    public T select(int rank) {
+        Node<T> node = selectNode(rank);
+        return node == null ? null : node.data;
+    }
+
+    /**
+     * Gives an iterator over the values in the order of their keys, starting
+     * from the value at a position. The tree must not be changed while the
+     * iterator is used.
+     *
+     * @param rank the position of the first value, starting from 0
+     * @return the iterator, which is empty when the position is not in the tree
+     */
+    public Iterator<T> iterator(int rank) {
+        return new InOrderIterator(selectNode(rank), null);
+    }
+
+    /**
+     * Finds the node at a position by the counts of the left subtrees.
+     */
+    private Node<T> selectNode(int rank) {
+        if (rank < 0 || rank >= size) {
+            return null;
+        }
+        Node<T> current = root;
+        while (current != null) {
+            int left = count(current.leftChild);
+            if (rank < left) {
+                current = current.leftChild;
+            } else if (rank == left) {
+                return current;
+            } else {
+                rank -= left + 1;
+                current = current.rightChild;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fixes the counts of the node and of every node above it, after the
+     * subtree of the node gained or lost a node.
+     */
+    private void recount(Node<T> node) {
+        for (; node != null; node = node.parent) {
+            node.count = count(node.leftChild) + count(node.rightChild) + 1;
+        }
+    }
+
+    /**
+     * @return the number of nodes in the subtree, 0 for an empty one
+     */
+    private static int count(Node<?> node) {
+        return node == null ? 0 : node.count;
+    }
+
+    /**
+     * Finds the node with the least key greater than or equal to the key.
+     */
+    private Node<T> ceilingNode(K key) {
+        Node<T> current = root;
+        Node<T> found = null;
+        while (current != null) {
+            int compare = comparator.compare(key, keyOf.apply(current.data));
+            if (compare == 0) {
+                return current;
+            }
+            if (compare < 0) {
+                found = current; // a candidate, a closer one may be on the left
+                current = current.leftChild;
+            } else {
+                current = current.rightChild;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the node that comes after the node in the order of keys: the least
+     * node of its right subtree, or else the first ancestor it is on the left of.
+     */
+    private static <T> Node<T> successor(Node<T> node) {
+        if (node.rightChild != null) {
+            node = node.rightChild;
+            while (node.leftChild != null) {
+                node = node.leftChild;
+            }
+            return node;
+        }
+        while (node.parent != null && node.parent.rightChild == node) {
+            node = node.parent;
+        }
+        return node.parent;
+    }
+
+    /**
+     * Removes the value stored under the key from this tree, keeping it a valid
+     * red black tree.
+     *
+     * @param key the key of the value to be removed
+     * @return true when the value was in the tree and has been removed, false otherwise
+     */
+    public boolean delete(K key) {
+        Node<T> node = getNode(key);
+        if (node == null) {
+            return false;
+        }
+        deleteNode(node);
+        return true;
+    }
+
+    /**
+     * Removes the given node from this tree. A node with two children is replaced
+     * by the node of its in order successor, which is moved up with the color of
+     * the removed node, so every other node keeps its value. When a black node
+     * leaves its position, the black height of that side is restored by
+     * enforceRBTreePropertiesAfterDelete.
+     *
+     * @param node a node of this tree
+     */
+    protected void deleteNode(Node<T> node) {
+        Node<T> child; // the node taking the position that loses a node
+        Node<T> childParent;
+        boolean removedBlack;
+        if (node.leftChild == null || node.rightChild == null) {
+            child = node.leftChild != null ? node.leftChild : node.rightChild;
+            childParent = node.parent;
+            removedBlack = node.isBlack;
+            replace(node, child);
+        } else {
+            Node<T> successor = node.rightChild;
+            while (successor.leftChild != null) {
+                successor = successor.leftChild;
+            }
+            child = successor.rightChild;
+            removedBlack = successor.isBlack;
+            if (successor.parent == node) {
+                childParent = successor;
+            } else {
+                childParent = successor.parent;
+                replace(successor, child);
+                successor.rightChild = node.rightChild;
+                successor.rightChild.parent = successor;
+            }
+            replace(node, successor);
+            successor.leftChild = node.leftChild;
+            successor.leftChild.parent = successor;
+            successor.isBlack = node.isBlack;
+        }
+        if (childParent != null) {
+            this.recount(childParent);
+        }
+        node.parent = node.leftChild = node.rightChild = null;
+        node.count = 1;
+        if (removedBlack) {
+            if (child != null && !child.isBlack) {
+                child.isBlack = true; // a red child takes over the missing black
+            } else if (childParent != null) {
+                enforceRBTreePropertiesAfterDelete(child, childParent);
+            }
+        }
+        size--;
+    }
+
+    /**
+     * Links the replacement, which may be null, into the position of the node
+     * under the parent of the node.
+     */
+    private void replace(Node<T> node, Node<T> replacement) {
+        if (node.parent == null) {
+            root = replacement;
+        } else if (node.parent.leftChild == node) {
+            node.parent.leftChild = replacement;
+        } else {
+            node.parent.rightChild = replacement;
+        }
+        if (replacement != null) {
+            replacement.parent = node.parent;
+        }
     }
 
     /**
@@ -54,10 +419,10 @@ public class RedBlackTree<T extends Comparable<T>> implements java.io.Serializab
      * @param subtree is the reference to a node within this tree which the
      *                newNode should be inserted as a descenedent beneath
      * @throws IllegalArgumentException when the newNode and subtree contain
-     *                                  equal data references (as defined by Comparable.compareTo())
+     *                                  equal keys (as defined by the comparator)
      */
     private void insertHelper(Node<T> newNode, Node<T> subtree) {
-        int compare = newNode.data.compareTo(subtree.data);
+        int compare = comparator.compare(keyOf.apply(newNode.data), keyOf.apply(subtree.data));
         // do not allow duplicate values to be stored within this tree
         if (compare == 0)
             throw new IllegalArgumentException("This RedBlackTree already contains that value.");
@@ -67,6 +432,7 @@ public class RedBlackTree<T extends Comparable<T>> implements java.io.Serializab
             if (subtree.leftChild == null) { // left subtree empty, add here
                 subtree.leftChild = newNode;
                 newNode.parent = subtree;
+                this.recount(subtree);
                 this.enforceRBTreePropertiesAfterInsert(newNode);
                 // otherwise continue recursive search for location to insert
             } else
@@ -78,6 +444,7 @@ public class RedBlackTree<T extends Comparable<T>> implements java.io.Serializab
             if (subtree.rightChild == null) { // right subtree empty, add here
                 subtree.rightChild = newNode;
                 newNode.parent = subtree;
+                this.recount(subtree);
                 this.enforceRBTreePropertiesAfterInsert(newNode);
                 // otherwise continue recursive search for location to insert
             } else {
@@ -95,7 +462,7 @@ public class RedBlackTree<T extends Comparable<T>> implements java.io.Serializab
      * @return string containing the values of this tree in level order
      */
     @Override public String toString() {
-        return root.toString();
+        return root == null ? "[]" : root.toString();
     }
 
     /**
@@ -149,15 +516,18 @@ public class RedBlackTree<T extends Comparable<T>> implements java.io.Serializab
             child.leftChild = parent;               // New Left of Child
             parent.parent = child;                  // New Parent of Parent
         }
+        child.parent = Grandparent; // null when the child becomes the root
         if (Grandparent != null) {
             // Set the new parent of child
-            child.parent = Grandparent;
             if (Grandparent.leftChild == parent) {
                 Grandparent.leftChild = child;
             } else {
                 Grandparent.rightChild = child;
             }
         }
+        // the parent is now below the child, so its count is fixed first
+        parent.count = count(parent.leftChild) + count(parent.rightChild) + 1;
+        child.count = count(child.leftChild) + count(child.rightChild) + 1;
 
     }
 
@@ -208,8 +578,8 @@ public class RedBlackTree<T extends Comparable<T>> implements java.io.Serializab
                             sibling.isBlack = true;         // set sibling as black
                             redNode.parent.isBlack = true;  // set parent as black
                             redNode.parent.parent.isBlack = false; // set grandparent as red
-                            // only allowed when the parent is not the root
-                            if (redNode.parent.equals(root)) {
+                            // only allowed when the grandparent is not the root
+                            if (redNode.parent.parent != root) {
                                 // recursively called, because it might cause the red property violation
                                 enforceRBTreePropertiesAfterInsert(redNode.parent.parent);
                             }
@@ -244,8 +614,8 @@ public class RedBlackTree<T extends Comparable<T>> implements java.io.Serializab
                             sibling.isBlack = true;         // set sibling as black
                             redNode.parent.isBlack = true;  // set parent as black
                             redNode.parent.parent.isBlack = false; // set grandparent as red
-                            // only allowed when the parent is not the root
-                            if (redNode.parent.equals(root)) {
+                            // only allowed when the grandparent is not the root
+                            if (redNode.parent.parent != root) {
                                 // recursively called, because it might cause the red property violation
                                 enforceRBTreePropertiesAfterInsert(redNode.parent.parent);
                             }
@@ -256,17 +626,112 @@ public class RedBlackTree<T extends Comparable<T>> implements java.io.Serializab
         }
     }
 
+    /**
+     * It takes the node, possibly null, that has one less black node on its paths than its
+     * sibling after a black node was removed above it, together with its parent. The missing
+     * black is moved up the tree by recoloring the sibling, or settled by rotations around the
+     * parent, until every path from the root has the same number of black nodes again.
+     *
+     * @param doubleBlack the node short of one black, null for an empty leaf position
+     * @param parent      the parent of doubleBlack
+     */
+    private void enforceRBTreePropertiesAfterDelete(Node<T> doubleBlack, Node<T> parent) {
+        while (doubleBlack != root && isBlack(doubleBlack)) {
+            boolean isLeft = parent.leftChild == doubleBlack;
+            Node<T> sibling = isLeft ? parent.rightChild : parent.leftChild;
+            if (!isBlack(sibling)) { // red sibling, rotate so that the sibling is black
+                sibling.isBlack = true;
+                parent.isBlack = false;
+                this.rotate(sibling, parent);
+                sibling = isLeft ? parent.rightChild : parent.leftChild;
+            }
+            if (sibling == null) { // cannot happen in a valid tree, move the problem up
+                doubleBlack = parent;
+                parent = parent.parent;
+                continue;
+            }
+            Node<T> near = isLeft ? sibling.leftChild : sibling.rightChild;
+            Node<T> far = isLeft ? sibling.rightChild : sibling.leftChild;
+            if (isBlack(near) && isBlack(far)) { // black nephews, recolor and move up
+                sibling.isBlack = false;
+                doubleBlack = parent;
+                parent = parent.parent;
+            } else {
+                if (isBlack(far)) { // rotate the red near nephew to the far side
+                    near.isBlack = true;
+                    sibling.isBlack = false;
+                    this.rotate(near, sibling);
+                    far = sibling;
+                    sibling = near;
+                }
+                sibling.isBlack = parent.isBlack;
+                parent.isBlack = true;
+                far.isBlack = true;
+                this.rotate(sibling, parent);
+                doubleBlack = root;
+            }
+        }
+        if (doubleBlack != null) {
+            doubleBlack.isBlack = true;
+        }
+    }
+
+    /**
+     * @return true when the node is black, where a null leaf counts as black
+     */
+    private static boolean isBlack(Node<?> node) {
+        return node == null || node.isBlack;
+    }
+
+    /**
+     * This class walks the nodes from a first node to the end of a range by
+     * following each node to its successor.
+     */
+    private class InOrderIterator implements Iterator<T> {
+        private Node<T> next; // the node given out next, null at the end
+        private final K to; // the key the walk ends before, null for no end
+
+        private InOrderIterator(Node<T> first, K to) {
+            this.to = to;
+            this.next = first;
+            endIfPast();
+        }
+
+        @Override public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override public T next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            T data = next.data;
+            next = successor(next);
+            endIfPast();
+            return data;
+        }
+
+        /**
+         * Ends the walk when the next node is not before the end of the range.
+         */
+        private void endIfPast() {
+            if (next != null && to != null && comparator.compare(keyOf.apply(next.data), to) >= 0) {
+                next = null;
+            }
+        }
+    }
 
     /**
      * This class represents a node holding a single value within a binary tree
      * the parent, left, and right child references are always be maintained.
      */
-    protected static class Node<T> implements java.io.Serializable {
-        public T data;
+    protected static class Node<T> {
+        public volatile T data; // may be read without a lock, so it is published safely
         public Node<T> parent; // null for root node
         public Node<T> leftChild;
         public Node<T> rightChild;
         public boolean isBlack;
+        public int count = 1; // number of nodes in the subtree rooted at this node
 
         public Node(T data) {
             this.data = data;
@@ -290,8 +755,8 @@ public class RedBlackTree<T extends Comparable<T>> implements java.io.Serializab
          * @return string containing the values of this tree in level order
          */
         @Override public String toString() { // display subtree in order traversal
-            String output = "[";
-            LinkedList<Node<T>> q = new LinkedList<>();
+            StringBuilder output = new StringBuilder("[");
+            ArrayDeque<Node<T>> q = new ArrayDeque<>();
             q.add(this);
             while (!q.isEmpty()) {
                 Node<T> next = q.removeFirst();
@@ -299,11 +764,11 @@ public class RedBlackTree<T extends Comparable<T>> implements java.io.Serializab
                     q.add(next.leftChild);
                 if (next.rightChild != null)
                     q.add(next.rightChild);
-                output += next.data.toString();
+                output.append(next.data);
                 if (!q.isEmpty())
-                    output += ", ";
+                    output.append(", ");
             }
-            return output + "]";
+            return output.append("]").toString();
         }
     }
 
@@ -0,0 +1,211 @@
+// --== CS400 File Header Information ==--
+// Name: Jiahe Jin
+// Email: jjin82@wisc.edu
+// Team: JB
+// Role: Back End Developer
+// TA: Harper
+// Lecturer: Florian Heimerl
+// Notes to Grader: N/A
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * This class keeps the favorite cities warm in the WeatherTree. Every PLAN_INTERVAL it looks at the
+ * markedTime of each favorite city and schedules a fetch of it a little before it expires, so a
+ * read of a favorite city never has to wait for the api. The fetches are spread apart by a random
+ * jitter and a minimum spacing, so cities fetched at the same time once do not expire and get
+ * fetched again in a burst.
+ *
+ * <p>The cities are planned in the order they expire, and each fetch takes the free time nearest
+ * to the one drawn for it, moving earlier rather than past the expiry when the times around it
+ * are taken. A city the api does not know is not planned again while the scheduler runs.
+ *
+ * @author Jiahe Jin
+ */
+public class RefreshScheduler implements AutoCloseable {
+    private static final Duration UPDATE_TIME = Duration.ofHours(1); // when read fetches again
+    private static final Duration PLAN_INTERVAL = Duration.ofMinutes(1);
+    private static final Duration EARLIEST = Duration.ofMinutes(5); // fetch at most this early
+    private static final Duration LATEST = Duration.ofMinutes(1); // and at least this early
+    private static final Duration SPACING = Duration.ofSeconds(2); // between two fetches
+
+    private final Supplier<WeatherTree> trees;
+    private final Supplier<List<String>> favorites;
+    private final Consumer<WeatherTree> saver;
+    private final ScheduledExecutorService executor;
+    private final Random random = new Random();
+    private final HashSet<String> scheduled = new HashSet<>(); // lower case names of cities
+    private final HashSet<String> unknown = new HashSet<>(); // the cities the api answered 404 for
+    private final TreeSet<LocalDateTime> slots = new TreeSet<>(); // the times fetches are planned
+
+    /**
+     * The constructor sets up the scheduler. Nothing is scheduled until start is called.
+     *
+     * @param trees     gives the WeatherTree to refresh, called before each planning and fetch
+     * @param favorites gives the current favorite list
+     * @param saver     writes the WeatherTree after a city has been fetched into it
+     */
+    public RefreshScheduler(Supplier<WeatherTree> trees, Supplier<List<String>> favorites,
+        Consumer<WeatherTree> saver) {
+        this.trees = trees;
+        this.favorites = favorites;
+        this.saver = saver;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "weather-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * This method starts planning the fetches of the favorite cities, right away and then every
+     * PLAN_INTERVAL.
+     */
+    public void start() {
+        executor.scheduleWithFixedDelay(this::plan, 0, PLAN_INTERVAL.toMillis(),
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method stops the scheduler. A fetch that is running is interrupted.
+     */
+    @Override public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The private helper method schedules a fetch for each favorite city that expires before the
+     * next planning, the city that expires first first. A city missing from the tree is fetched as
+     * soon as the spacing allows.
+     */
+    private void plan() {
+        try {
+            WeatherTree tree = trees.get();
+            LocalDateTime now = LocalDateTime.now();
+            LocalDateTime horizon = now.plus(PLAN_INTERVAL).plus(EARLIEST);
+            List<Map.Entry<LocalDateTime, String>> due = new ArrayList<>();
+            for (String city : favorites.get()) {
+                String key = city.toLowerCase();
+                if (scheduled.contains(key) || unknown.contains(key)) {
+                    continue;
+                }
+                Weather cached = tree.lookup(city);
+                LocalDateTime expiry =
+                    cached == null ? now : cached.getMarkedTime().plus(UPDATE_TIME);
+                if (expiry.isBefore(horizon)) {
+                    due.add(Map.entry(expiry, city));
+                    scheduled.add(key);
+                }
+            }
+            due.sort(Map.Entry.comparingByKey());
+            for (Map.Entry<LocalDateTime, String> city : due) {
+                schedule(city.getValue(), city.getKey(), now);
+            }
+        } catch (RuntimeException e) {
+            // a failed planning is tried again at the next interval
+        }
+    }
+
+    /**
+     * The private helper method schedules one fetch at a random time between EARLIEST and LATEST
+     * before the expiry, or at the free time nearest to it when a fetch is planned within SPACING
+     * of it.
+     */
+    private void schedule(String city, LocalDateTime expiry, LocalDateTime now) {
+        long window = EARLIEST.minus(LATEST).toMillis();
+        LocalDateTime drawn = expiry.minus(EARLIEST).plusNanos(
+            TimeUnit.MILLISECONDS.toNanos((long) (random.nextDouble() * window)));
+        if (drawn.isBefore(now)) {
+            drawn = now;
+        }
+        LocalDateTime at = this.freeSlot(drawn, now, expiry);
+        slots.add(at);
+        executor.schedule(() -> refresh(city, at), Duration.between(now, at).toMillis(),
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The private helper method finds the free time nearest to the drawn one, that is the time no
+     * planned fetch is within SPACING of. An earlier time is taken over a later one that is not
+     * before the expiry, and a later one when there is no free time between now and the drawn
+     * time.
+     *
+     * @param drawn  the time drawn for the fetch
+     * @param now    the earliest time the fetch can be sent
+     * @param expiry the time the city expires
+     * @return the time to fetch the city at
+     */
+    private LocalDateTime freeSlot(LocalDateTime drawn, LocalDateTime now, LocalDateTime expiry) {
+        LocalDateTime later = drawn;
+        for (LocalDateTime taken = clash(later); taken != null; taken = clash(later)) {
+            later = taken.plus(SPACING);
+        }
+        LocalDateTime earlier = drawn;
+        for (LocalDateTime taken = clash(earlier); taken != null && !earlier.isBefore(now);
+            taken = clash(earlier)) {
+            earlier = taken.minus(SPACING);
+        }
+        if (earlier.isBefore(now)) {
+            return later;
+        }
+        if (later.isBefore(expiry)
+            && Duration.between(drawn, later).compareTo(Duration.between(earlier, drawn)) <= 0) {
+            return later;
+        }
+        return earlier;
+    }
+
+    /**
+     * The private helper method gives out a planned fetch within SPACING of the time, or null when
+     * there is none.
+     */
+    private LocalDateTime clash(LocalDateTime time) {
+        LocalDateTime before = slots.floor(time);
+        if (before != null && before.plus(SPACING).isAfter(time)) {
+            return before;
+        }
+        LocalDateTime after = slots.ceiling(time);
+        if (after != null && after.minus(SPACING).isBefore(time)) {
+            return after;
+        }
+        return null;
+    }
+
+    /**
+     * The private helper method fetches one city into the tree and saves the tree.
+     */
+    private void refresh(String city, LocalDateTime at) {
+        try {
+            WeatherTree tree = trees.get();
+            tree.revalidate(city).join();
+            saver.accept(tree);
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof WeatherSource.StatusException
+                && ((WeatherSource.StatusException) cause).getStatus() == 404) {
+                unknown.add(city.toLowerCase()); // fetching it again would only get 404 again
+            }
+            // any other city is planned again at the next interval, and read works without it
+        } catch (RuntimeException e) {
+            // the city is planned again at the next interval, and read still works without it
+        } finally {
+            scheduled.remove(city.toLowerCase());
+            slots.remove(at);
+        }
+    }
+}
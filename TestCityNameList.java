@@ -0,0 +1,196 @@
+// --== CS400 File Header Information ==--
+// Name: Jiahe Jin
+// Email: jjin82@wisc.edu
+// Team: JB
+// Role: Back End Developer
+// TA: Harper
+// Lecturer: Florian Heimerl
+// Notes to Grader: Run with make test. The checks write their own small city list into a
+// temporary directory, so they do not need city.list.json.
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.json.simple.parser.ParseException;
+
+/**
+ * This class checks the searches by place of CityNameList against a brute-force scan of every
+ * city. Each test method gives out true when the check passes, and main runs all of them.
+ *
+ * @author Jiahe Jin
+ */
+public class TestCityNameList {
+    private static final int CITIES = 5000;
+    private static final int QUERIES = 200;
+    private static final double EARTH_RADIUS = 6371.0088;
+    private static final String[] NATIONS = {"US", "GB", "FR", "CN", "IN"};
+
+    private static float[] latitudes = new float[CITIES];
+    private static float[] longitudes = new float[CITIES];
+
+    /**
+     * This method checks nearest and within of the loaded list and of the mapped index file
+     * written from it against the cities a scan of every city finds.
+     *
+     * @return true when every search found the same cities in the same order
+     */
+    public static boolean testSearchByPlace() throws IOException, ParseException {
+        Path directory = Files.createTempDirectory("weatherapp-test");
+        try {
+            CityNameList loaded = new CityNameList();
+            loaded.load(writeCityList(directory.resolve("city.list.json")).toString());
+            Path index = directory.resolve("city.index");
+            loaded.write(index.toString());
+            CityNameList mapped = CityNameList.open(index.toString());
+            Random random = new Random(18);
+            for (int q = 0; q < QUERIES; q++) {
+                double latitude = random.nextDouble() * 180 - 90;
+                double longitude = random.nextDouble() * 360 - 180;
+                int count = 1 + random.nextInt(20);
+                double km = random.nextDouble() * 2000;
+                List<String> nearest = bruteForce(latitude, longitude, count,
+                    Double.POSITIVE_INFINITY);
+                List<String> within = bruteForce(latitude, longitude, CITIES, km);
+                for (CityNameList list : new CityNameList[] {loaded, mapped}) {
+                    if (!names(list.nearest(latitude, longitude, count)).equals(nearest)) {
+                        System.out.println("  nearest " + count + " to " + latitude + ", "
+                            + longitude + " differs from the scan");
+                        return false;
+                    }
+                    if (!names(list.within(latitude, longitude, km)).equals(within)) {
+                        System.out.println("  within " + km + " km of " + latitude + ", "
+                            + longitude + " differs from the scan");
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } finally {
+            for (Path file : Files.list(directory).toArray(Path[]::new)) {
+                Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * This method checks the bad arguments of nearest and within: a count of 0 finds nothing, and
+     * a negative count or distance, or a place off the earth, is refused.
+     *
+     * @return true when every bad argument was handled
+     */
+    public static boolean testBadArguments() {
+        CityNameList list = new CityNameList();
+        if (!list.nearest(0, 0, 0).isEmpty() || !list.nearest(0, 0, 5).isEmpty()) {
+            return false;
+        }
+        Runnable[] refused = {
+            () -> list.nearest(0, 0, -1),
+            () -> list.within(0, 0, -1),
+            () -> list.within(0, 0, Double.NaN),
+            () -> list.nearest(91, 0, 1),
+            () -> list.within(0, -181, 1),
+            () -> list.nearest(Double.NaN, 0, 1)};
+        for (int i = 0; i < refused.length; i++) {
+            try {
+                refused[i].run();
+                System.out.println("  bad argument " + i + " was not refused");
+                return false;
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The private helper method writes a city list of random places in the format of
+     * city.list.json, remembering the places as the floats CityNameList keeps.
+     */
+    private static Path writeCityList(Path file) throws IOException {
+        Random random = new Random(400);
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("[\n");
+            for (int i = 0; i < CITIES; i++) {
+                latitudes[i] = (float) (random.nextDouble() * 180 - 90);
+                longitudes[i] = (float) (random.nextDouble() * 360 - 180);
+                writer.write((i == 0 ? "" : ",\n") + "{\"id\": " + (i + 1) + ", \"name\": \"Place"
+                    + i + "\", \"state\": \"\", \"country\": \"" + NATIONS[i % NATIONS.length]
+                    + "\", \"coord\": {\"lon\": " + longitudes[i] + ", \"lat\": " + latitudes[i]
+                    + "}}");
+            }
+            writer.write("\n]\n");
+        }
+        return file;
+    }
+
+    /**
+     * The private helper method finds the names of the nearest count cities within km of the
+     * place by working out the great-circle distance of every city.
+     */
+    private static List<String> bruteForce(double latitude, double longitude, int count,
+        double km) {
+        Integer[] order = new Integer[CITIES];
+        double[] distances = new double[CITIES];
+        for (int i = 0; i < CITIES; i++) {
+            order[i] = i;
+            distances[i] = haversine(latitude, longitude, latitudes[i], longitudes[i]);
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> distances[i]));
+        List<String> names = new ArrayList<>();
+        for (int i : order) {
+            if (names.size() == count || distances[i] > km) {
+                break;
+            }
+            names.add("Place" + i);
+        }
+        return names;
+    }
+
+    private static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double h = Math.pow(Math.sin(dLat / 2), 2) + Math.cos(Math.toRadians(lat1))
+            * Math.cos(Math.toRadians(lat2)) * Math.pow(Math.sin(dLon / 2), 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    /**
+     * The private helper method takes the city names out of the lines of a search.
+     */
+    private static List<String> names(List<String> lines) {
+        List<String> names = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            names.add(line.substring(0, line.indexOf("     --")));
+        }
+        return names;
+    }
+
+    /**
+     * This method runs every test and exits with status 1 when one of them fails.
+     *
+     * @param args unused
+     */
+    public static void main(String[] args) throws Exception {
+        boolean passed = report("testSearchByPlace", testSearchByPlace());
+        passed &= report("testBadArguments", testBadArguments());
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The private helper method prints the result of a test.
+     */
+    private static boolean report(String name, boolean passed) {
+        System.out.println(name + ": " + (passed ? "passed" : "FAILED"));
+        return passed;
+    }
+}
@@ -0,0 +1,157 @@
+// --== CS400 File Header Information ==--
+// Name: Jiahe Jin
+// Email: jjin82@wisc.edu
+// Team: JB
+// Role: Back End Developer
+// TA: Harper
+// Lecturer: Florian Heimerl
+// Notes to Grader: Run with make test. The checks run Data against a LocalWeatherServer on the
+// loopback address, so they need neither the network nor the api key.
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.parser.ParseException;
+
+/**
+ * This class checks the refresh of the favorite list through the group endpoint of the api. Each
+ * test method gives out true when the check passes, and main runs all of them.
+ *
+ * @author Jiahe Jin
+ */
+public class TestGroupRefresh {
+    private static final int CITIES = 45; // three requests of the group endpoint: 20, 20 and 5
+    private static final int DROPPED = 7; // the id the group endpoint leaves out of its answer
+    private static final String SHARED = "Springfield"; // the name of two cities of the list
+
+    /**
+     * This method checks refresh with the ids of a CityNameList. The cities of a single id must be
+     * fetched GROUP_SIZE at a time and the city two cities share by its name, every city must be
+     * stored under its own name, and the city left out of a group answer must be missing from the
+     * tree until the next read fetches it by its name.
+     *
+     * @return true when the requests and the tree were as expected
+     */
+    public static boolean testGroupRefresh() throws IOException, ParseException {
+        Path directory = Files.createTempDirectory("weatherapp-test");
+        CountingSource source = new CountingSource();
+        try (LocalWeatherServer server = new LocalWeatherServer(source, 0)) {
+            server.start();
+            CityNameList list = new CityNameList();
+            list.load(writeCityList(directory.resolve("city.list.json")).toString());
+            if (list.id(SHARED) != -1 || list.id("City1") != 1 || list.id("City10") != 10) {
+                System.out.println("  the ids of " + SHARED + ", City1 and City10 are "
+                    + list.id(SHARED) + ", " + list.id("City1") + " and " + list.id("City10"));
+                return false;
+            }
+            List<String> favorites = new ArrayList<>();
+            for (int id = 1; id <= CITIES; id++) {
+                favorites.add("City" + id);
+            }
+            favorites.add(SHARED);
+            WeatherTree tree = new WeatherTree(new Data(server.getApi()), false);
+            tree.refresh(favorites, list::id);
+            List<Integer> sizes = new ArrayList<>(source.groupSizes);
+            Collections.sort(sizes);
+            if (!sizes.equals(List.of(5, 20, 20)) || source.singles.get() != 1) {
+                System.out.println("  group requests of " + sizes + " cities and "
+                    + source.singles.get() + " single requests");
+                return false;
+            }
+            for (String city : favorites) {
+                Weather weather = tree.lookup(city);
+                boolean stored = weather != null && weather.getCity().equals(city);
+                if (stored == city.equals("City" + DROPPED)) {
+                    System.out.println("  the tree holds " + weather + " for " + city);
+                    return false;
+                }
+            }
+            Weather read = tree.read("City" + DROPPED);
+            if (!read.getCity().equals("City" + DROPPED) || source.singles.get() != 2) {
+                System.out.println("  read gave " + read.getCity() + " after "
+                    + source.singles.get() + " single requests");
+                return false;
+            }
+            return true;
+        } finally {
+            for (Path file : Files.list(directory).toArray(Path[]::new)) {
+                Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * The private helper method writes a city list in the format of city.list.json that holds the
+     * cities City1 to City45 of the ids 1 to 45, and two cities of the shared name.
+     */
+    private static Path writeCityList(Path file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("[\n");
+            for (int id = 1; id <= CITIES + 2; id++) {
+                String name = id <= CITIES ? "City" + id : SHARED;
+                writer.write((id == 1 ? "" : ",\n") + "{\"id\": " + id + ", \"name\": \"" + name
+                    + "\", \"state\": \"\", \"country\": \"" + (id % 2 == 0 ? "US" : "GB")
+                    + "\", \"coord\": {\"lon\": " + id + ", \"lat\": " + (id - 45) + "}}");
+            }
+            writer.write("\n]\n");
+        }
+        return file;
+    }
+
+    /**
+     * This class is a FixtureWeatherSource that counts the requests of each endpoint and leaves
+     * the city of the id DROPPED out of every group answer.
+     */
+    private static class CountingSource implements WeatherSource {
+        private final FixtureWeatherSource fixture = new FixtureWeatherSource();
+        private final List<Integer> groupSizes = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger singles = new AtomicInteger();
+
+        @Override public Weather update(String name) throws IOException {
+            singles.incrementAndGet();
+            return fixture.update(name);
+        }
+
+        @Override public CompletableFuture<Weather> updateAsync(String name) {
+            singles.incrementAndGet();
+            return fixture.updateAsync(name);
+        }
+
+        @Override public CompletableFuture<Map<Integer, Weather>> updateGroupAsync(int[] ids) {
+            groupSizes.add(ids.length);
+            return fixture.updateGroupAsync(ids).thenApply(cities -> {
+                cities.remove(DROPPED);
+                return cities;
+            });
+        }
+    }
+
+    /**
+     * This method runs every test and exits with status 1 when one of them fails.
+     *
+     * @param args unused
+     */
+    public static void main(String[] args) throws Exception {
+        boolean passed = report("testGroupRefresh", testGroupRefresh());
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The private helper method prints the result of a test.
+     */
+    private static boolean report(String name, boolean passed) {
+        System.out.println(name + ": " + (passed ? "passed" : "FAILED"));
+        return passed;
+    }
+}
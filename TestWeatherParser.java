@@ -0,0 +1,245 @@
+// --== CS400 File Header Information ==--
+// Name: Jiahe Jin
+// Email: jjin82@wisc.edu
+// Team: JB
+// Role: Back End Developer
+// TA: Harper
+// Lecturer: Florian Heimerl
+// Notes to Grader: Run with make test. json-simple is the reference the parser is checked against,
+// read the way Data read the responses before WeatherParser.
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * This class checks WeatherParser against json-simple on random responses of the weather api.
+ * Each test method gives out true when the check passes, and main runs all of them.
+ *
+ * @author Jiahe Jin
+ */
+public class TestWeatherParser {
+    private static final int PAYLOADS = 20000;
+    private static final int GROUPS = 2000;
+    private static final String[] NAMES = {"Madison", "S\\u00e3o Paulo", "Z\u00fcrich",
+        "Quote \\\"City\\\"", "Back\\\\slash", "\u5317\u4eac", "Tab\\tTown"};
+
+    /**
+     * This method checks parse on random responses: the fields in any order and spread over any
+     * number of lines, with other fields of every kind of value around them, and numbers written
+     * in every way JSON allows.
+     *
+     * @return true when every response gave the same Weather Object as json-simple
+     */
+    public static boolean testParse() throws ParseException {
+        Random random = new Random(22);
+        for (int i = 0; i < PAYLOADS; i++) {
+            String json = city(random, -1);
+            Weather got = WeatherParser.parse(json.getBytes(StandardCharsets.UTF_8));
+            Weather want = reference((JSONObject) new JSONParser().parse(json));
+            if (!same(got, want)) {
+                System.out.println("  payload " + i + " differs: " + json);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * This method checks parseGroup on random responses of the group endpoint.
+     *
+     * @return true when every city of every response matched json-simple
+     */
+    public static boolean testParseGroup() throws ParseException {
+        Random random = new Random(23);
+        for (int i = 0; i < GROUPS; i++) {
+            int count = random.nextInt(WeatherSource.GROUP_SIZE + 1);
+            StringBuilder json = new StringBuilder("{\"cnt\": " + count + ",\n\"list\": [");
+            for (int c = 0; c < count; c++) {
+                json.append(c == 0 ? "" : ",").append(city(random, 1000 + c));
+            }
+            json.append("]}");
+            Map<Integer, Weather> got =
+                WeatherParser.parseGroup(json.toString().getBytes(StandardCharsets.UTF_8));
+            JSONArray list = (JSONArray) ((JSONObject) new JSONParser().parse(json.toString()))
+                .get("list");
+            if (got.size() != list.size()) {
+                System.out.println("  group " + i + " has " + got.size() + " cities");
+                return false;
+            }
+            for (Object city : list) {
+                int id = ((Number) ((JSONObject) city).get("id")).intValue();
+                if (!same(got.get(id), reference((JSONObject) city))) {
+                    System.out.println("  city " + id + " of group " + i + " differs: " + json);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * This method checks that a response missing a field of Weather, or one that is not JSON, is
+     * refused with ParseException.
+     *
+     * @return true when every bad response was refused
+     */
+    public static boolean testBadResponse() {
+        String good = city(new Random(24), -1);
+        String[] bad = {good.replace("\"visibility\"", "\"visible\""),
+            good.replace("\"temp_max\"", "\"tempmax\""), good.substring(0, good.length() / 2),
+            "[]", ""};
+        for (String json : bad) {
+            try {
+                WeatherParser.parse(json.getBytes(StandardCharsets.UTF_8));
+                System.out.println("  not refused: " + json);
+                return false;
+            } catch (ParseException e) {
+                // expected
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The private helper method writes a random response of the weather endpoint, or a city of the
+     * group endpoint when the id is not -1.
+     */
+    private static String city(Random random, int id) {
+        List<String> fields = new ArrayList<>();
+        fields.add(field(random, "coord", object(random, "lon", number(random), "lat",
+            number(random))));
+        fields.add(field(random, "weather", "[" + object(random, "id", "800", "main", "\"Clear\"",
+            "description", "\"" + NAMES[random.nextInt(NAMES.length)] + " sky\"", "icon",
+            "\"01d\"") + ", {\"description\": \"not this one\"}]"));
+        fields.add(field(random, "main", object(random, "temp", number(random), "feels_like",
+            number(random), "temp_min", number(random), "temp_max", number(random), "pressure",
+            number(random), "humidity", number(random), "sea_level", number(random))));
+        fields.add(field(random, "visibility", number(random)));
+        fields.add(field(random, "wind", object(random, "speed", number(random), "deg",
+            number(random), "gust", number(random))));
+        fields.add(field(random, "name", "\"" + NAMES[random.nextInt(NAMES.length)] + "\""));
+        fields.add(field(random, "clouds", "{\"all\": [1, [2, {\"3\": null}], true, false]}"));
+        fields.add(field(random, "sys", object(random, "country", "\"US\"", "sunrise",
+            "1600000000", "name", "\"not the city\"")));
+        fields.add(field(random, "cod", "200"));
+        if (id != -1) {
+            fields.add(field(random, "id", Integer.toString(id)));
+        }
+        Collections.shuffle(fields, random);
+        return "{" + String.join("," + space(random), fields) + "}";
+    }
+
+    private static String object(Random random, String... keysAndValues) {
+        List<String> fields = new ArrayList<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            fields.add(field(random, keysAndValues[i], keysAndValues[i + 1]));
+        }
+        Collections.shuffle(fields, random);
+        return "{" + space(random) + String.join(",", fields) + space(random) + "}";
+    }
+
+    private static String field(Random random, String key, String value) {
+        return space(random) + "\"" + key + "\"" + space(random) + ":" + space(random) + value;
+    }
+
+    private static String space(Random random) {
+        String[] spaces = {"", "", " ", "\n", "\n  ", "\r\n\t"};
+        return spaces[random.nextInt(spaces.length)];
+    }
+
+    /**
+     * The private helper method writes a random JSON number: a whole number, a decimal of a few
+     * places, one with an exponent, or one of more digits than a long holds.
+     */
+    private static String number(Random random) {
+        String sign = random.nextInt(4) == 0 ? "-" : "";
+        switch (random.nextInt(6)) {
+            case 0:
+                return sign + random.nextInt(100000);
+            case 1:
+                return sign + random.nextInt(1000) + "." + random.nextInt(100);
+            case 2:
+                return sign + String.format(Locale.ROOT, "%." + random.nextInt(8) + "f",
+                    random.nextDouble() * 1000);
+            case 3:
+                return sign + (1 + random.nextInt(9)) + "." + random.nextInt(1000)
+                    + (random.nextBoolean() ? "e" : "E") + (random.nextBoolean() ? "-" : "+")
+                    + random.nextInt(30);
+            case 4:
+                return sign + "1234567890123456789" + random.nextInt(1000) + "."
+                    + random.nextInt(10);
+            default:
+                return sign + Double.toString(random.nextDouble() * Math.pow(10,
+                    random.nextInt(40) - 20));
+        }
+    }
+
+    /**
+     * The private helper method reads the Weather Object out of a json-simple tree the way Data
+     * did before WeatherParser.
+     */
+    private static Weather reference(JSONObject json) {
+        JSONObject coord = (JSONObject) json.get("coord");
+        JSONObject main = (JSONObject) json.get("main");
+        JSONObject wind = (JSONObject) json.get("wind");
+        String description =
+            ((JSONObject) ((JSONArray) json.get("weather")).get(0)).get("description").toString();
+        return new Weather(json.get("name").toString(), number(coord.get("lon")),
+            number(coord.get("lat")), description, number(main.get("temp")),
+            number(main.get("feels_like")), number(main.get("temp_min")),
+            number(main.get("temp_max")), number(main.get("pressure")),
+            number(main.get("humidity")), number(wind.get("speed")),
+            number(json.get("visibility")));
+    }
+
+    private static double number(Object value) {
+        return Double.parseDouble(value.toString());
+    }
+
+    /**
+     * The private helper method compares every field of two Weather Objects but the markedTime.
+     * The numbers are compared with ==, since json-simple reads -0 as the whole number 0.
+     */
+    private static boolean same(Weather a, Weather b) {
+        return a != null && a.getCity().equals(b.getCity())
+            && a.getWeatherDescription().equals(b.getWeatherDescription())
+            && a.getLongitude() == b.getLongitude() && a.getLatitude() == b.getLatitude()
+            && a.getTemperature() == b.getTemperature()
+            && a.getApparentTemperature() == b.getApparentTemperature()
+            && a.getMinTemperature() == b.getMinTemperature()
+            && a.getMaxTemperature() == b.getMaxTemperature()
+            && a.getPressure() == b.getPressure() && a.getHumidity() == b.getHumidity()
+            && a.getWindSpeed() == b.getWindSpeed() && a.getVisibility() == b.getVisibility();
+    }
+
+    /**
+     * This method runs every test and exits with status 1 when one of them fails.
+     *
+     * @param args unused
+     */
+    public static void main(String[] args) throws Exception {
+        boolean passed = report("testParse", testParse());
+        passed &= report("testParseGroup", testParseGroup());
+        passed &= report("testBadResponse", testBadResponse());
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The private helper method prints the result of a test.
+     */
+    private static boolean report(String name, boolean passed) {
+        System.out.println(name + ": " + (passed ? "passed" : "FAILED"));
+        return passed;
+    }
+}
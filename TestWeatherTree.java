@@ -0,0 +1,294 @@
+// --== CS400 File Header Information ==--
+// Name: Jiahe Jin
+// Email: jjin82@wisc.edu
+// Team: JB
+// Role: Back End Developer
+// TA: Harper
+// Lecturer: Florian Heimerl
+// Notes to Grader: Run with make test. The checks use a FixtureWeatherSource, so they need
+// neither the network nor the api key.
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.parser.ParseException;
+
+/**
+ * This class checks the WeatherTree against a FixtureWeatherSource. Each test method gives out
+ * true when the check passes, and main runs all of them.
+ *
+ * @author Jiahe Jin
+ */
+public class TestWeatherTree {
+    private static final int CITIES = 200;
+    private static final int CAPACITY = 64;
+    private static final int READERS = 4;
+    private static final long RUN_MILLIS = 2000;
+    private static final int REFRESHED = 40; // more cities than refresh fetches at once
+    private static final long REFRESH_LATENCY = 20; // in milliseconds
+
+    /**
+     * This method checks the optimistic reads of the tree. Reader threads look cities up while a
+     * writer keeps fetching cities into a tree too small for them, so every fetch rotates the tree
+     * and evicts a city. A lookup must give out either null or the Weather Object of the city it
+     * asked for, and never fail, however the search overlaps the writer.
+     *
+     * @return true when every lookup was right
+     */
+    public static boolean testOptimisticRead() throws InterruptedException {
+        WeatherTree tree = new WeatherTree(new FixtureWeatherSource(), false);
+        tree.setCapacity(CAPACITY);
+        String[] cities = new String[CITIES];
+        for (int i = 0; i < CITIES; i++) {
+            cities[i] = "City" + i;
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong lookups = new AtomicLong();
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            long seed = r;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                while (running.get()) {
+                    String city = cities[random.nextInt(CITIES)];
+                    try {
+                        Weather weather = tree.lookup(city.toLowerCase());
+                        if (weather != null && !weather.getCity().equals(city)) {
+                            errors.add("lookup of " + city + " gave " + weather.getCity());
+                        }
+                    } catch (RuntimeException e) {
+                        errors.add("lookup of " + city + " threw " + e);
+                    }
+                    lookups.incrementAndGet();
+                }
+            }));
+        }
+        Thread writer = new Thread(() -> {
+            Random random = new Random(-1);
+            while (running.get()) {
+                try {
+                    tree.revalidate(cities[random.nextInt(CITIES)]).join();
+                } catch (CompletionException e) {
+                    errors.add("fetch threw " + e.getCause());
+                }
+            }
+        });
+        threads.add(writer);
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(RUN_MILLIS);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (tree.size() > CAPACITY) {
+            errors.add("the tree holds " + tree.size() + " cities, over " + CAPACITY);
+        }
+        for (Weather weather : tree.values()) {
+            if (tree.lookup(weather.getCity()) != weather) {
+                errors.add(weather.getCity() + " is in the tree but not found");
+            }
+        }
+        System.out.println("  " + lookups.get() + " lookups by " + READERS + " readers");
+        for (String error : errors.subList(0, Math.min(errors.size(), 5))) {
+            System.out.println("  " + error);
+        }
+        return errors.isEmpty() && lookups.get() > 0;
+    }
+
+    /**
+     * This method checks that every fetch refresh starts is in flight before refresh gives back,
+     * even the ones waiting for their turn behind the first few. The cities are stale but younger
+     * than the hard expiry, so refresh does not wait for them. Reading half of the cities right
+     * after must join their fetches instead of sending others, awaitFetches must wait for the
+     * fetches of all of them, and no city may be fetched again once its fetch is done.
+     *
+     * @return true when each city was fetched once and every fetch was stored
+     */
+    public static boolean testRefreshInFlight() throws InterruptedException {
+        FixtureWeatherSource source = new FixtureWeatherSource();
+        source.setLatency(Duration.ofMillis(REFRESH_LATENCY));
+        WeatherTree tree = new WeatherTree(source, false);
+        tree.setStaleWhileRevalidate(Duration.ofHours(6));
+        List<String> cities = new ArrayList<>();
+        LocalDateTime stale = LocalDateTime.now().minusHours(2);
+        for (int i = 0; i < REFRESHED; i++) {
+            cities.add("City" + i);
+            Weather weather = new Weather("City" + i, 0, 0, "clear sky", 0, 0, 0, 0, 1000, 50, 0,
+                10000);
+            weather.setMarkedTime(stale);
+            tree.put(weather);
+        }
+        tree.refresh(cities);
+        try {
+            for (int i = 0; i < REFRESHED; i += 2) {
+                tree.read(cities.get(i));
+            }
+        } catch (IOException | ParseException e) {
+            System.out.println("  read threw " + e);
+            return false;
+        }
+        tree.awaitFetches();
+        for (String city : cities) {
+            if (!tree.lookup(city).getMarkedTime().isAfter(stale)) {
+                System.out.println("  " + city + " was not stored before awaitFetches gave back");
+                return false;
+            }
+        }
+        Thread.sleep(REFRESH_LATENCY * REFRESHED); // long enough for every fetch one at a time
+        if (source.getCalls() != REFRESHED) {
+            System.out.println("  " + source.getCalls() + " fetches of " + REFRESHED + " cities");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * This method checks the reads of a source over its rate limit. A city already in the tree
+     * must be given out however old it is, and a city that is not must throw the 429 of the
+     * source instead of giving out null.
+     *
+     * @return true when the old city was given out and the new one threw the 429
+     */
+    public static boolean testReadOverLimit() {
+        FixtureWeatherSource source = new FixtureWeatherSource();
+        source.setRateLimit(0, Duration.ofHours(1));
+        WeatherTree tree = new WeatherTree(source, false);
+        Weather old = new Weather("City0", 0, 0, "clear sky", 0, 0, 0, 0, 1000, 50, 0, 10000);
+        old.setMarkedTime(LocalDateTime.now().minusDays(2));
+        tree.put(old);
+        try {
+            if (tree.read("City0") != old) {
+                System.out.println("  the read of City0 did not give out the old city");
+                return false;
+            }
+        } catch (IOException | ParseException e) {
+            System.out.println("  the read of City0 threw " + e);
+            return false;
+        }
+        try {
+            System.out.println("  the read of City1 gave out " + tree.read("City1"));
+            return false;
+        } catch (WeatherSource.StatusException e) {
+            if (e.getStatus() != 429) {
+                System.out.println("  the read of City1 threw HTTP status " + e.getStatus());
+                return false;
+            }
+        } catch (IOException | ParseException e) {
+            System.out.println("  the read of City1 threw " + e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * This method checks that the histories of the cities are written with the WeatherLog. Hourly
+     * observations of a few cities are stored and their histories appended a few at a time, with
+     * a compaction at the start and in the middle. After each replay the histories must hold every
+     * observation a history kept only in memory holds, and more observations added to a replayed
+     * history must be read back too.
+     *
+     * @return true when every replayed history matched
+     */
+    public static boolean testHistorySurvivesReplay() throws IOException {
+        Path directory = Files.createTempDirectory("weatherapp-test");
+        String log = directory.resolve("log").toString();
+        String histories = directory.resolve("history").toString();
+        try {
+            String[] cities = {"Madison", "Milwaukee", "Chicago"};
+            WeatherHistory[] expected = new WeatherHistory[cities.length];
+            for (int c = 0; c < cities.length; c++) {
+                expected[c] = new WeatherHistory();
+            }
+            Random random = new Random(21);
+            LocalDateTime start = LocalDateTime.of(2026, 1, 1, 0, 0);
+            WeatherTree tree = new WeatherTree(new FixtureWeatherSource(), false);
+            int hours = WeatherHistory.BLOCK_POINTS * 3 + 5;
+            for (int hour = 0; hour < hours; hour++) {
+                for (int c = 0; c < cities.length; c++) {
+                    Weather weather = new Weather(cities[c], 0, 0, "clear sky",
+                        Math.round(random.nextGaussian() * 500) / 100.0, 0, 0, 0,
+                        1000 + random.nextInt(30), random.nextInt(101),
+                        Math.round(random.nextDouble() * 1500) / 100.0, 10000);
+                    weather.setMarkedTime(start.plusHours(hour).plusSeconds(random.nextInt(60)));
+                    tree.put(weather);
+                    expected[c].add(weather);
+                }
+                if (hour % 10 == 9) {
+                    new WeatherLog(log, histories).append(tree);
+                    tree = new WeatherLog(log, histories).replay(new FixtureWeatherSource());
+                    if (!sameHistories(tree, cities, expected, start, hour)) {
+                        return false;
+                    }
+                }
+                if (hour == 0 || hour == hours / 2) {
+                    new WeatherLog(log, histories).compact(tree); // put is not a change to append
+                }
+            }
+            return true;
+        } finally {
+            for (Path file : Files.list(directory).toArray(Path[]::new)) {
+                Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * The private helper method compares the histories of the cities in the tree with the
+     * expected ones over every measure.
+     */
+    private static boolean sameHistories(WeatherTree tree, String[] cities,
+        WeatherHistory[] expected, LocalDateTime start, int hour) {
+        LocalDateTime end = start.plusHours(hour + 1);
+        for (int c = 0; c < cities.length; c++) {
+            for (WeatherTree.Measure measure : WeatherTree.Measure.values()) {
+                List<String> want = new ArrayList<>();
+                List<String> got = new ArrayList<>();
+                expected[c].scan(measure, WeatherHistory.toSeconds(start),
+                    WeatherHistory.toSeconds(end), (time, value) -> want.add(time + " " + value));
+                if (!tree.history(cities[c], measure, start, end,
+                    (time, value) -> got.add(time + " " + value)) || !got.equals(want)) {
+                    System.out.println("  the " + measure + " of " + cities[c] + " after hour "
+                        + hour + " has " + got.size() + " observations, expected " + want.size());
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * This method runs every test and exits with status 1 when one of them fails.
+     *
+     * @param args unused
+     */
+    public static void main(String[] args) throws Exception {
+        boolean passed = report("testOptimisticRead", testOptimisticRead());
+        passed &= report("testRefreshInFlight", testRefreshInFlight());
+        passed &= report("testReadOverLimit", testReadOverLimit());
+        passed &= report("testHistorySurvivesReplay", testHistorySurvivesReplay());
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The private helper method prints the result of a test.
+     */
+    private static boolean report(String name, boolean passed) {
+        System.out.println(name + ": " + (passed ? "passed" : "FAILED"));
+        return passed;
+    }
+}
@@ -0,0 +1,347 @@
+// --== CS400 File Header Information ==--
+// Name: Jiahe Jin
+// Email: jjin82@wisc.edu
+// Team: JB
+// Role: Back End Developer
+// TA: Harper
+// Lecturer: Florian Heimerl
+// Notes to Grader: The api key allows a number of calls a minute. Before this class, a call beyond
+// it was sent anyway, and the app only found out from the error that came back.
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * This class is a WeatherSource that keeps the calls to another source within the quota of the
+ * api key. Every call takes a token from a bucket that holds a minute of the quota and fills up at
+ * the quota's rate. A call that finds the bucket empty waits for its token in line, without
+ * holding a thread, and a call that would have to wait longer than the longest wait fails at once
+ * with status 429 without being sent, so the caller can fall back to the cached weather.
+ *
+ * <p>The quota belongs to the api key, not to one run of the app, so the bucket is kept in a state
+ * file when one is given: every call locks the file, reads the tokens and the time they were last
+ * filled, takes its token and writes them back. The runs of the command line and the daemon then
+ * share one bucket, and a run that starts finds it as the runs before it left it instead of full.
+ * Without a state file the bucket belongs to the process and starts full.
+ *
+ * <p>A call answered with status 429 or 5xx is sent again after an exponential backoff with
+ * jitter, up to MAX_ATTEMPTS times. A 429 also empties the bucket and holds every call back for
+ * the backoff, since the api says the key has gone over its quota, and the calls waiting in line
+ * would only be turned away too.
+ *
+ * @author Jiahe Jin
+ */
+public class ThrottledWeatherSource implements WeatherSource {
+    private static final int MAX_ATTEMPTS = 4;
+    private static final Duration BASE_BACKOFF = Duration.ofSeconds(1);
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(30);
+    private static final int STATE_BYTES = 16; // the tokens and the wall clock they were filled at
+
+    private final WeatherSource upstream;
+    private final int callsPerMinute;
+    private final double tokensPerNano;
+    private final long maxWait; // in nanoseconds
+    private final ScheduledExecutorService scheduler;
+    private final Path state; // the file the bucket is kept in between processes, or null
+    private double tokens; // below 0 when calls wait in line for tokens
+    private long filled; // System.nanoTime when tokens was last filled
+    private long pausedUntil; // System.nanoTime until which no call is sent after a 429
+
+    /**
+     * The constructor wraps the source with a full bucket of its own.
+     *
+     * @param upstream       the source the calls are sent to
+     * @param callsPerMinute the quota of the api key
+     * @param maxWait        the longest a call waits in line for its token
+     * @throws IllegalArgumentException when the quota is less than one
+     */
+    public ThrottledWeatherSource(WeatherSource upstream, int callsPerMinute, Duration maxWait) {
+        this(upstream, callsPerMinute, maxWait, null);
+    }
+
+    /**
+     * The constructor wraps the source with the bucket kept in the state file, which every
+     * process wrapping its source with the same file shares. The bucket starts full when the file
+     * does not exist yet.
+     *
+     * @param upstream       the source the calls are sent to
+     * @param callsPerMinute the quota of the api key
+     * @param maxWait        the longest a call waits in line for its token
+     * @param state          the path of the state file, or null for a bucket of this process
+     * @throws IllegalArgumentException when the quota is less than one
+     */
+    public ThrottledWeatherSource(WeatherSource upstream, int callsPerMinute, Duration maxWait,
+        String state) {
+        if (callsPerMinute < 1) {
+            throw new IllegalArgumentException("The quota must be at least 1 call a minute.");
+        }
+        this.upstream = upstream;
+        this.callsPerMinute = callsPerMinute;
+        this.tokensPerNano = callsPerMinute / (double) Duration.ofMinutes(1).toNanos();
+        this.maxWait = maxWait.toNanos();
+        this.tokens = callsPerMinute;
+        this.filled = System.nanoTime();
+        this.pausedUntil = filled;
+        this.state = state == null ? null : Paths.get(state);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "weather-throttle");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override public Weather update(String name) throws IOException, ParseException {
+        try {
+            return this.updateAsync(name).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof ParseException) {
+                throw (ParseException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override public CompletableFuture<Weather> updateAsync(String name) {
+        return this.call(() -> upstream.updateAsync(name));
+    }
+
+    @Override public CompletableFuture<Map<Integer, Weather>> updateGroupAsync(int[] ids) {
+        if (ids.length == 0 || ids.length > GROUP_SIZE) {
+            throw new IllegalArgumentException(
+                "The group endpoint takes 1 to " + GROUP_SIZE + " cities, not " + ids.length);
+        }
+        return this.call(() -> upstream.updateGroupAsync(ids));
+    }
+
+    /**
+     * The private helper method sends a call when its token comes, trying it again on 429 and
+     * 5xx.
+     *
+     * @param send sends the call to the upstream source
+     * @return the future of the answer, failed with the error of the last try
+     */
+    private <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> send) {
+        CompletableFuture<T> answer = new CompletableFuture<>();
+        this.attempt(send, 0, answer);
+        return answer;
+    }
+
+    private <T> void attempt(Supplier<CompletableFuture<T>> send, int attempt,
+        CompletableFuture<T> answer) {
+        long wait = this.reserve();
+        if (wait < 0) {
+            answer.completeExceptionally(new StatusException(429, "Over the quota of "
+                + callsPerMinute + " calls a minute, the call was not sent"));
+            return;
+        }
+        if (wait == 0) {
+            // a call with its token at hand is sent by the caller, not handed to the scheduler
+            this.send(send, attempt, answer);
+        } else {
+            scheduler.schedule(() -> this.send(send, attempt, answer), wait,
+                TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private <T> void send(Supplier<CompletableFuture<T>> send, int attempt,
+        CompletableFuture<T> answer) {
+        CompletableFuture<T> sent;
+        try {
+            sent = send.get();
+        } catch (RuntimeException e) {
+            answer.completeExceptionally(e);
+            return;
+        }
+        sent.whenComplete((value, failure) -> {
+            if (failure == null) {
+                answer.complete(value);
+                return;
+            }
+            Throwable cause = failure;
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            int status = cause instanceof StatusException
+                ? ((StatusException) cause).getStatus() : 0;
+            if ((status == 429 || status >= 500) && attempt + 1 < MAX_ATTEMPTS) {
+                long backoff = backoff(attempt);
+                if (status == 429) {
+                    this.pause(backoff);
+                }
+                scheduler.schedule(() -> this.attempt(send, attempt + 1, answer), backoff,
+                    TimeUnit.NANOSECONDS);
+            } else {
+                answer.completeExceptionally(cause);
+            }
+        });
+    }
+
+    /**
+     * The private helper method takes a token for a call, filling the bucket for the time passed
+     * first. The token may be one the bucket will only have later; the call then waits for it.
+     *
+     * @return the nanoseconds the call waits before it is sent, or -1 when it would wait longer
+     * than the longest wait, in which case no token is taken
+     */
+    private synchronized long reserve() {
+        FileChannel channel = this.lockState();
+        try {
+            long now = this.fill(channel);
+            long wait = Math.max(0, pausedUntil - now);
+            if (tokens < 1) {
+                wait = Math.max(wait, (long) Math.ceil((1 - tokens) / tokensPerNano));
+            }
+            if (wait > maxWait) {
+                return -1;
+            }
+            tokens -= 1;
+            return wait;
+        } finally {
+            this.unlockState(channel);
+        }
+    }
+
+    /**
+     * The private helper method holds every call back for the backoff after a 429 and empties the
+     * bucket, so the calls after it start again at the rate of the quota.
+     */
+    private synchronized void pause(long backoff) {
+        FileChannel channel = this.lockState();
+        try {
+            long now = this.fill(channel);
+            pausedUntil = Math.max(pausedUntil, now + backoff);
+            tokens = Math.min(tokens, 0);
+        } finally {
+            this.unlockState(channel);
+        }
+    }
+
+    /**
+     * The private helper method reads the bucket out of the locked state file, if there is one,
+     * and fills it for the time passed since.
+     *
+     * @param channel the locked state file, or null to use the bucket of this process
+     * @return the System.nanoTime the bucket was filled at
+     */
+    private long fill(FileChannel channel) {
+        long now = System.nanoTime();
+        if (channel != null) {
+            ByteBuffer saved = ByteBuffer.allocate(STATE_BYTES);
+            try {
+                int read = 0;
+                while (saved.hasRemaining() && read >= 0) {
+                    read = channel.read(saved, saved.position());
+                }
+            } catch (IOException e) {
+                saved.clear(); // the bucket of this process is used instead
+            }
+            saved.flip();
+            if (saved.remaining() == STATE_BYTES) {
+                double savedTokens = saved.getDouble();
+                long passed = Math.max(0, wallClock() - saved.getLong()); // clock set back: 0
+                if (Double.isFinite(savedTokens)) {
+                    tokens = Math.min(callsPerMinute, savedTokens);
+                    filled = now - Math.min(passed, Duration.ofMinutes(1).toNanos());
+                }
+            }
+        }
+        tokens = Math.min(callsPerMinute, tokens + (now - filled) * tokensPerNano);
+        filled = now;
+        return now;
+    }
+
+    /**
+     * The private helper method opens the state file and locks it against the other processes.
+     *
+     * @return the locked state file, or null when there is none or it cannot be opened, in which
+     * case the bucket of this process is used
+     */
+    private FileChannel lockState() {
+        if (state == null) {
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(state, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            channel.lock();
+            return channel;
+        } catch (IOException e) {
+            closeState(channel);
+            return null;
+        }
+    }
+
+    /**
+     * The private helper method writes the bucket into the locked state file and closes it, which
+     * lets the other processes take their tokens.
+     *
+     * @param channel the locked state file, or null
+     */
+    private void unlockState(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            ByteBuffer saved = ByteBuffer.allocate(STATE_BYTES).putDouble(tokens)
+                .putLong(wallClock() - (System.nanoTime() - filled));
+            saved.flip();
+            while (saved.hasRemaining()) {
+                channel.write(saved, saved.position());
+            }
+        } catch (IOException e) {
+            // the next call finds the bucket as the call before left it
+        } finally {
+            closeState(channel);
+        }
+    }
+
+    /**
+     * The private helper method closes the state file, which releases its lock.
+     */
+    private static void closeState(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // the lock is released with the file even when closing it fails
+        }
+    }
+
+    /**
+     * The private helper method gives out the time in nanoseconds since the epoch, which unlike
+     * System.nanoTime means the same in every process.
+     */
+    private static long wallClock() {
+        return System.currentTimeMillis() * 1_000_000L;
+    }
+
+    /**
+     * The private helper method works out the backoff before the next try: half of it doubles with
+     * every try up to MAX_BACKOFF, and the other half is random, so the calls that failed together
+     * are not all sent again at the same time.
+     */
+    private static long backoff(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF.toNanos(), BASE_BACKOFF.toNanos() << attempt);
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+}
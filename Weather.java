@@ -29,6 +29,8 @@ public class Weather implements Comparable, java.io.Serializable {
     private double windSpeed;
     private double visibility;
     private LocalDateTime markedTime; // the last being called marked time
+    // read since the WeatherTree last looked at it for eviction
+    private transient volatile boolean read;
 
     /**
      * This is the default constructor that stores the weather information of a city
@@ -161,6 +163,15 @@ public class Weather implements Comparable, java.io.Serializable {
         return this.maxTemperature;
     }
 
+    /**
+     * The accessor of pressure
+     *
+     * @return the value of pressure
+     */
+    public double getPressure() {
+        return this.pressure;
+    }
+
     /**
      * The accessor of humidity
      *
@@ -188,6 +199,27 @@ public class Weather implements Comparable, java.io.Serializable {
         return this.visibility;
     }
 
+    /**
+     * This method marks the Weather Object as read, so the WeatherTree keeps it longer. It is only
+     * written when not marked yet, so reading a city many times does not write it each time.
+     */
+    void markRead() {
+        if (!this.read) {
+            this.read = true;
+        }
+    }
+
+    /**
+     * This method takes off the mark of being read
+     *
+     * @return true if the Weather Object was marked as read
+     */
+    boolean clearRead() {
+        boolean wasRead = this.read;
+        this.read = false;
+        return wasRead;
+    }
+
     /**
      * This method serves for comparison between cities
      *
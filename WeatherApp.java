@@ -7,8 +7,8 @@
 // Lecturer: Florian Heimerl
 // Notes to Grader: N/A
 import java.io.*;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.Scanner;
 
 import org.json.simple.parser.ParseException;
@@ -30,13 +30,33 @@ public class WeatherApp {
             + "--remove or –r {city_name city_name …}:\tremove cities from favorites list\n"
             + "--detail:                              \t\tshow the weather information in detail mode\n"
             + "--search or -s {string}:               \t\tsearch available city names begin with {string}\n"
-            + "--search or -s {string} [{nation}]:    \t\tsearch available city names begin with {string} in country {nation}";
+            + "--search or -s {string} [{nation}]:    \t\tsearch available city names begin with {string} in country {nation}\n"
+            + "--cached [{string}]:                   \t\tlist cached cities (begin with {string}) and their update time\n"
+            + "--near {lat} {lon} [{n}]:              \t\tshow the {n} (10 by default) cities nearest to the place\n"
+            + "--within {lat} {lon} {km}:             \t\tshow the cities within {km} kilometers of the place\n"
+            + "--top {measure} [{n}]:                 \t\tshow the {n} (10 by default) cached cities with highest temperature, humidity, wind or pressure\n"
+            + "--above {measure} {value}:             \t\tshow the cached cities with temperature, humidity, wind or pressure above {value}\n"
+            + "--history {city} {measure} [{hours}]:  \t\tshow the {measure} of {city} fetched in the last {hours} (24 by default) hours";
 
     static final String version_document = "This is Weather version 0.0.1";
 
     static final String favoriteListCache = "./.weather_favorite_list.weather_app_cache";
-    static final String weatherDataCache = "./.weather_weather_data.weather_app_cache";
+    static final String weatherDataCache = "./.weather_weather_log.weather_app_cache";
+    static final String weatherHistoryCache = "./.weather_weather_history.weather_app_cache";
     static final String cityDataCache = "./.city_data_cache.weather_app_cache";
+    static final String quotaCache = "./.weather_quota.weather_app_cache";
+
+    // how old a cached city may get while it is shown and refreshed in the background
+    static final Duration hardExpiry =
+            Duration.ofHours(Long.getLong("weatherapp.hardExpiryHours", 6));
+    // how many cities the WeatherTree keeps before evicting the least recently read one
+    static final int cacheCapacity = Integer.getInteger("weatherapp.cacheCapacity", 256);
+    // how many calls a minute the api key may make
+    static final int callsPerMinute = Integer.getInteger("weatherapp.callsPerMinute", 60);
+    // every fetch goes through this source, and the bucket kept in quotaCache makes the runs of the
+    // command line and the daemon share the quota, not just the fetches of one process
+    static final WeatherSource weatherSource = new ThrottledWeatherSource(new Data(),
+            callsPerMinute, Duration.ofSeconds(10), quotaCache);
 
     /**
      * write an object to a file using serialization.
@@ -71,7 +91,8 @@ public class WeatherApp {
             ret = in.readObject();
             in.close();
             fi.close();
-        } catch (FileNotFoundException | ClassNotFoundException e) {
+        } catch (FileNotFoundException | ClassNotFoundException | InvalidClassException e) {
+            // a missing cache, or one written by an older version of a class, is rebuilt
             return null;
         } catch (IOException e) {
             e.printStackTrace();
@@ -105,27 +126,40 @@ public class WeatherApp {
     }
 
     /**
-     * load WeatherTree from cache
+     * load WeatherTree from cache by replaying its log
      *
      * @return the WeatherTree
      */
     static WeatherTree loadWeatherTree() {
-        WeatherTree tree;
-        tree = (WeatherTree) readObject(weatherDataCache);
+        WeatherTree tree = null;
+        try {
+            tree = new WeatherLog(weatherDataCache, weatherHistoryCache).replay(weatherSource);
+        } catch (IOException e) {
+            System.out.println("error when read the cache: " + weatherDataCache);
+            e.printStackTrace();
+        }
         if (tree == null) {
-            tree = new WeatherTree();
+            tree = new WeatherTree(weatherSource, true);
         }
+        tree.setStaleWhileRevalidate(hardExpiry);
+        tree.setCapacity(cacheCapacity);
         return tree;
     }
 
     /**
-     * load city name list from cache
+     * load city name list from cache. The cache is a binary index file that is mapped into memory,
+     * so only the parts touched by a search or lookup are read from disk.
      *
      * @return the city name list
      */
     static CityNameList loadCityNameList() {
-        CityNameList list;
-        list = (CityNameList) readObject(cityDataCache);
+        CityNameList list = null;
+        try {
+            list = CityNameList.open(cityDataCache);
+        } catch (IOException e) {
+            System.out.println("error when read the cache: " + cityDataCache);
+            e.printStackTrace();
+        }
         if (list == null) {
             list = new CityNameList();
             try {
@@ -149,12 +183,18 @@ public class WeatherApp {
     }
 
     /**
-     * write WeatherTree to cache
+     * write the cities of the WeatherTree changed since it was loaded to the end of its log
      *
      * @param tree the WeatherTree
      */
-    static void writeWeatherTree(WeatherTree tree) {
-        writeObject(tree, weatherDataCache);
+    static synchronized void writeWeatherTree(WeatherTree tree) {
+        tree.awaitFetches();
+        try {
+            new WeatherLog(weatherDataCache, weatherHistoryCache).append(tree);
+        } catch (IOException e) {
+            System.out.println("error when write the cache: " + weatherDataCache);
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -163,141 +203,20 @@ public class WeatherApp {
      * @param list the city name list list
      */
     static void writeCityNameList(CityNameList list) {
-        writeObject(list, cityDataCache);
+        try {
+            list.write(cityDataCache);
+        } catch (IOException e) {
+            System.out.println("error when write the cache: " + cityDataCache);
+            e.printStackTrace();
+        }
     }
 
     public static void main(String[] args) throws IOException {
-        ArrayList<String> favoriteList = loadFavoriteList();
-        WeatherTree tree = loadWeatherTree();
-        CityNameList cityNameList = null;
-        // when no argument, print weather information of favorite list
-        if (args.length == 0) {
-            if (favoriteList.isEmpty()) {
-                System.out.println(
-                        "favorite list is empty. \nuse --add to add city into the list. \nuse --help to see the help document.");
-            } else {
-                for (String city : favoriteList) {
-                    try {
-                        System.out.println(tree.getImportantInfo(city));
-                    } catch (ParseException e) {
-                        System.out.println("Exceed the call limit of the openweathermap api id");
-                    }
-                }
-            }
-        } else {
-            ArgumentParser parser = new ArgumentParser(args);
-            try {
-                parser.parseArgument();
-            } catch (IllegalArgumentException e) {
-                System.out.println(e.getMessage());
-                return;
-            }
-            // with --detail only, print weather information of favorite list in detail mode
-            if (args.length == 1 && parser.isArgDetail()) {
-                if (favoriteList.isEmpty()) {
-                    System.out.println("favorite list is empty. \nuse --add to add city into the list.");
-                } else {
-                    for (String city : favoriteList) {
-                        try {
-                            System.out.println(tree.getDetailInfo(city));
-                        } catch (ParseException e) {
-                            System.out.println("Exceed the call limit of the openweathermap api id");
-                        }
-                    }
-                }
-            } else {
-                // other commands
-                if (parser.isArgHelp()) {
-                    System.out.println(help_document);
-                }
-                if (parser.isArgVersion()) {
-                    System.out.println(version_document);
-                }
-                if (parser.getAddCities() != null) {
-                    if (cityNameList == null) {
-                        cityNameList = loadCityNameList();
-                    }
-                    for (String city : parser.getAddCities()) {
-                        if (!cityNameList.contains(city)) {
-                            System.out.println("\"" + city + "\" does not in the dataset");
-                            continue;
-                        }
-                        if (!favoriteList.contains(city)) {
-                            favoriteList.add(city);
-                        } else {
-                            System.out.println("city \"" + city + "\" already in the favorite list");
-                        }
-                    }
-                }
-                if (parser.getRemoveCities() != null) {
-                    for (String city : parser.getRemoveCities()) {
-                        if (!favoriteList.remove(city)) {
-                            System.out.println("city \"" + city + "\" does not in the favorite list");
-                        }
-                    }
-                }
-                if (parser.isArgList()) {
-                    for (String city : favoriteList) {
-                        System.out.println(city);
-                    }
-                }
-                if (parser.getRequestCities() != null) {
-                    if (cityNameList == null) {
-                        cityNameList = loadCityNameList();
-                    }
-                    for (String city : parser.getRequestCities()) {
-                        if (!cityNameList.contains(city)) {
-                            System.out.println("\"" + city + "\" does not in the dataset");
-                            continue;
-                        }
-                        try {
-                            if (parser.isArgDetail()) {
-                                System.out.println(tree.getDetailInfo(city));
-                            } else {
-                                System.out.println(tree.getImportantInfo(city));
-                            }
-                        } catch (ParseException e) {
-                            System.out.println("Exceed the call limit of the openweathermap api id");
-                        }
-                    }
-                }
-                if (parser.getSearchCity() != null) {
-                    Iterator<String> iter;
-                    if (cityNameList == null) {
-                        cityNameList = loadCityNameList();
-                    }
-                    if (parser.getSearchCityNation() != null) {
-                        iter = cityNameList.search(parser.getSearchCity(), parser.getSearchCityNation());
-                    } else {
-                        iter = cityNameList.search(parser.getSearchCity());
-                    }
-
-                    loop: while (true) {
-                        for (int i = 0; i < 10; i++) {
-                            if (iter.hasNext()) {
-                                System.out.println(iter.next());
-                            } else {
-                                break loop;
-                            }
-                        }
-                        Scanner scanner = new Scanner(System.in);
-                        if (!scanner.nextLine().trim().equals("")) {
-                            scanner.close();
-                            break;
-                        }
-                    }
-                }
-                if (parser.isArgCleanCache()) {
-                    deleteFile(weatherDataCache);
-                    deleteFile(cityDataCache);
-                    deleteFile(favoriteListCache);
-                } else {
-                    writeWeatherTree(tree);
-                    if (parser.getRemoveCities() != null || parser.getAddCities() != null) {
-                        writeFavoriteList(favoriteList);
-                    }
-                }
-            }
+        // let the daemon run the command when it is running, it has every cache in memory
+        Scanner in = new Scanner(System.in);
+        if (WeatherDaemon.forward(args, System.out, in)) {
+            return;
         }
+        new WeatherSession().run(args, System.out, in);
     }
 }
@@ -8,16 +8,36 @@
 // Notes to Grader: N/A
 import java.io.IOException;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
- * entrance of interactive mode
+ * entrance of interactive mode. the caches are loaded once into a session, and written every
+ * FLUSH_SECONDS and on exit instead of after every command.
  * 
  * @author Yunzhao Liu
  */
 
 public class WeatherAppInteract {
+    private static final long FLUSH_SECONDS = 30;
+
     public static void main(String[] args) throws IOException {
         Scanner scanner = new Scanner(System.in);
+        WeatherSession session = new WeatherSession(false);
+        // keep the favorite cities fresh in the cache while the interactive mode is open
+        RefreshScheduler scheduler = new RefreshScheduler(session::getTree,
+            session::getFavoriteList, tree -> {
+                // written by the flusher together with the rest of the session
+            });
+        scheduler.start();
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "weather-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(session::flush, FLUSH_SECONDS, FLUSH_SECONDS,
+            TimeUnit.SECONDS);
         System.out.println("=> WeatherApp interactive mode\n=> type \"--help\" for help\n=> type \"exit\" to exit");
         System.out.print("> ");
         while (scanner.hasNextLine()) {
@@ -26,12 +46,15 @@ public class WeatherAppInteract {
                 break;
             }
             if (line.equals("")) {
-                WeatherApp.main(new String[0]);
+                session.run(new String[0], System.out, scanner);
             } else {
-                WeatherApp.main(line.split(" "));
+                session.run(line.split(" "), System.out, scanner);
             }
             System.out.print("> ");
         }
+        scheduler.close();
+        flusher.shutdown();
+        session.flush();
         scanner.close();
     }
 }
@@ -0,0 +1,176 @@
+// --== CS400 File Header Information ==--
+// Name: Yunzhao Liu
+// Email: liu995@wisc.edu
+// Team: JB
+// Role: Front End Developer
+// TA: Harper
+// Lecturer: Florian Heimerl
+// Notes to Grader: N/A
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * resident daemon of weather app. it keeps one WeatherSession in memory and runs the commands sent
+ * to it over a unix domain socket, so a command does not have to start a jvm and load the caches.
+ *
+ * <p>a client sends each argument followed by a '\0' byte and then shuts down its output. the
+ * daemon answers with the line accepted before it runs the command, then sends back its output
+ * and closes the connection. a client that got no accepted line may run the command itself, since
+ * the daemon did not run it. a long answer is sent in pages of 10 lines, each followed by the
+ * line pageBreak, and the client asks the user whether to show the next page.
+ *
+ * <p>each client is served on a thread of its own, so a command waiting for the api does not hold
+ * up the others.
+ *
+ * @author Yunzhao Liu
+ */
+public class WeatherDaemon {
+    static final String socketFile = "./.weather_daemon.sock";
+    static final String accepted = "\u0006"; // the first line of every answer
+    static final String pageBreak = "\f"; // the line after each page of a long answer
+
+    public static void main(String[] args) throws IOException {
+        Path path = Paths.get(socketFile);
+        Files.deleteIfExists(path); // left by a daemon that did not exit cleanly
+        // the caches are written after each command once its client has its output
+        WeatherSession session = new WeatherSession(false);
+        RefreshScheduler scheduler = new RefreshScheduler(session::getTree,
+            session::getFavoriteList, WeatherApp::writeWeatherTree);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(path));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                scheduler.close();
+                session.flush();
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    // nothing left to do when exiting
+                }
+            }));
+            scheduler.start();
+            ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "weather-client");
+                thread.setDaemon(true);
+                return thread;
+            });
+            System.out.println("weather app daemon listening on " + socketFile);
+            while (true) {
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (IOException e) {
+                    System.out.println("error when accept a client: " + e.getMessage());
+                    continue;
+                }
+                workers.execute(() -> serve(client, session));
+            }
+        }
+    }
+
+    /**
+     * run the command of one client and send back its output, then write the caches once the
+     * connection is closed.
+     *
+     * @param client  the connection of the client
+     * @param session the session the command runs against
+     */
+    private static void serve(SocketChannel client, WeatherSession session) {
+        try (client) {
+            String[] command = readCommand(Channels.newInputStream(client));
+            PrintStream out = new PrintStream(Channels.newOutputStream(client), true,
+                StandardCharsets.UTF_8);
+            out.println(accepted);
+            session.run(command, out, pageBreak);
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("error when serve a command: " + e);
+        }
+        session.flush();
+    }
+
+    /**
+     * send a command to the daemon and print its output, when a daemon is running.
+     *
+     * @param args the command line arguments of the command
+     * @param out  where the output of the command is printed
+     * @param in   where to read whether to show the next page of a long answer
+     * @return true if the daemon took the command, false if there is no daemon to run it
+     */
+    static boolean forward(String[] args, PrintStream out, Scanner in) {
+        Path path = Paths.get(socketFile);
+        if (!Files.exists(path)) {
+            return false;
+        }
+        try (SocketChannel daemon = SocketChannel.open(UnixDomainSocketAddress.of(path))) {
+            ByteArrayOutputStream command = new ByteArrayOutputStream();
+            for (String arg : args) {
+                command.write(arg.getBytes(StandardCharsets.UTF_8));
+                command.write(0);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(command.toByteArray());
+            while (buffer.hasRemaining()) {
+                daemon.write(buffer);
+            }
+            daemon.shutdownOutput();
+            BufferedReader answer = new BufferedReader(new InputStreamReader(
+                Channels.newInputStream(daemon), StandardCharsets.UTF_8));
+            if (!accepted.equals(answer.readLine())) {
+                return false; // the daemon did not take the command, run it here
+            }
+            try {
+                for (String line = answer.readLine(); line != null; line = answer.readLine()) {
+                    if (!line.equals(pageBreak)) {
+                        out.println(line);
+                    } else if (!in.hasNextLine() || !in.nextLine().trim().equals("")) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // the command was taken, so it is not run again here
+                out.println("error when read the answer of the daemon: " + e.getMessage());
+            }
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            return false; // the daemon is gone, run the command here
+        }
+    }
+
+    /**
+     * read the '\0' terminated arguments of a command until the client shuts down its output.
+     *
+     * @param in the input of the connection
+     * @return the arguments
+     * @throws IOException when the connection meets an error
+     */
+    private static String[] readCommand(InputStream in) throws IOException {
+        byte[] bytes = in.readAllBytes();
+        ArrayList<String> args = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == 0) {
+                args.add(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        return args.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,479 @@
+// --== CS400 File Header Information ==--
+// Name: Jiahe Jin
+// Email: jjin82@wisc.edu
+// Team: JB
+// Role: Back End Developer
+// TA: Harper
+// Lecturer: Florian Heimerl
+// Notes to Grader: The compression follows the paper of Gorilla, the time series database of
+// Facebook: timestamps are written as delta of deltas and numbers as the XOR with the one before.
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class keeps the past weather of one city, so trends such as the temperature of the last 24
+ * hours can be shown. The history holds at most BLOCKS blocks of BLOCK_POINTS observations each;
+ * when every block is full, the oldest block is dropped to make room, so the history never grows
+ * beyond a fixed size.
+ *
+ * <p>Each block is compressed. The timestamps, in seconds, are written as the change of the time
+ * between two observations, which is a single 0 bit for a city fetched at a steady rate. Every
+ * Measure is written in a bit stream of its own as the XOR with the value before it, which is a
+ * single 0 bit for a value that did not change and only the bits that changed otherwise.
+ *
+ * <p>A scan decodes one Measure in a window of time and hands each observation to a Visitor as
+ * primitive numbers, so it does not allocate anything.
+ *
+ * <p>The blocks are written to disk by the WeatherLog as they are, still compressed. A block is
+ * written again only when observations were added to it since it was last written, and restore
+ * reads the written blocks back into a history.
+ *
+ * <p>The history is not thread safe. The WeatherTree guards it with its lock.
+ *
+ * @author Jiahe Jin
+ */
+public class WeatherHistory {
+    static final int BLOCK_POINTS = 24;
+    static final int BLOCKS = 8;
+    private static final int MEASURES = WeatherTree.Measure.values().length;
+
+    private final Block[] blocks = new Block[BLOCKS]; // a ring, the newest block at head
+    private int head = -1;
+    // the state of the encoder of the newest block
+    private long lastDelta;
+    private final long[] lastValues = new long[MEASURES];
+    private final int[] lastLeading = new int[MEASURES];
+    private final int[] lastTrailing = new int[MEASURES];
+
+    /**
+     * Receives the observations of a scan.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        /**
+         * This method is called for each observation in the window, from the oldest.
+         *
+         * @param time  the markedTime of the observation in epoch seconds, as written by toSeconds
+         * @param value the value of the Measure
+         */
+        void accept(long time, double value);
+    }
+
+    /**
+     * One block of compressed observations. The bit streams are kept as arrays of longs, the first
+     * for the timestamps and then one for each Measure.
+     */
+    private static final class Block {
+        private final long firstTime;
+        private long lastTime;
+        private int count;
+        private final long[][] streams = new long[1 + MEASURES][];
+        private final int[] lengths = new int[1 + MEASURES]; // in bits
+        private boolean written; // false when observations were added since it was written
+
+        Block(long firstTime) {
+            this.firstTime = firstTime;
+            for (int i = 0; i < streams.length; i++) {
+                streams[i] = new long[2];
+            }
+        }
+
+        /**
+         * The private helper method writes the low bits of the value at the end of the stream.
+         */
+        private void write(int stream, long value, int bits) {
+            int length = lengths[stream];
+            long[] words = streams[stream];
+            if (length + bits > words.length * 64) {
+                words = streams[stream] = Arrays.copyOf(words, words.length * 2);
+            }
+            if (bits < 64) {
+                value &= (1L << bits) - 1;
+            }
+            int index = length >>> 6;
+            int free = 64 - (length & 63);
+            if (bits <= free) {
+                words[index] |= value << (free - bits);
+            } else {
+                words[index] |= value >>> (bits - free);
+                words[index + 1] |= value << (64 - (bits - free));
+            }
+            lengths[stream] = length + bits;
+        }
+
+        /**
+         * The private helper method drops the unused words at the end of each stream, once the
+         * block is full.
+         */
+        private void trim() {
+            for (int i = 0; i < streams.length; i++) {
+                streams[i] = Arrays.copyOf(streams[i], (lengths[i] + 63) >>> 6);
+            }
+        }
+    }
+
+    /**
+     * This method adds an observation to the history. An observation that is not newer than the
+     * last one by at least a second, such as the same Weather Object stored again, is left out.
+     *
+     * @param weather the Weather Object of the city
+     */
+    public void add(Weather weather) {
+        long time = toSeconds(weather.getMarkedTime());
+        Block block = head < 0 ? null : blocks[head];
+        if (block != null && time <= block.lastTime) {
+            return;
+        }
+        if (block == null || block.count == BLOCK_POINTS) {
+            if (block != null) {
+                block.trim();
+            }
+            head = (head + 1) % BLOCKS;
+            block = blocks[head] = new Block(time); // drops the oldest block
+            lastDelta = 0;
+            for (WeatherTree.Measure measure : WeatherTree.Measure.values()) {
+                long value = Double.doubleToLongBits(measure.value.applyAsDouble(weather));
+                block.write(1 + measure.ordinal(), value, 64);
+                lastValues[measure.ordinal()] = value;
+                lastLeading[measure.ordinal()] = -1; // no window of meaningful bits yet
+            }
+        } else {
+            long delta = time - block.lastTime;
+            writeTime(block, delta - lastDelta);
+            lastDelta = delta;
+            for (WeatherTree.Measure measure : WeatherTree.Measure.values()) {
+                writeValue(block, measure.ordinal(), measure.value.applyAsDouble(weather));
+            }
+        }
+        block.lastTime = time;
+        block.count++;
+        block.written = false;
+    }
+
+    /**
+     * The private helper method writes the delta of deltas of a timestamp: a 0 bit when it is 0,
+     * and otherwise a prefix telling how many bits follow.
+     */
+    private static void writeTime(Block block, long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            block.write(0, 0b0, 1);
+        } else if (deltaOfDelta >= -64 && deltaOfDelta <= 63) {
+            block.write(0, 0b10, 2);
+            block.write(0, deltaOfDelta, 7);
+        } else if (deltaOfDelta >= -256 && deltaOfDelta <= 255) {
+            block.write(0, 0b110, 3);
+            block.write(0, deltaOfDelta, 9);
+        } else if (deltaOfDelta >= -2048 && deltaOfDelta <= 2047) {
+            block.write(0, 0b1110, 4);
+            block.write(0, deltaOfDelta, 12);
+        } else {
+            block.write(0, 0b1111, 4);
+            block.write(0, deltaOfDelta, 64);
+        }
+    }
+
+    /**
+     * The private helper method writes the XOR of a value with the one before it: a 0 bit when
+     * they are the same, the meaningful bits alone when they fit in the window of the XOR before,
+     * and otherwise the number of leading zeros and of meaningful bits followed by those bits.
+     */
+    private void writeValue(Block block, int measure, double number) {
+        int stream = 1 + measure;
+        long value = Double.doubleToLongBits(number);
+        long xor = value ^ lastValues[measure];
+        lastValues[measure] = value;
+        if (xor == 0) {
+            block.write(stream, 0b0, 1);
+            return;
+        }
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31); // kept in 5 bits
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (lastLeading[measure] >= 0 && leading >= lastLeading[measure]
+            && trailing >= lastTrailing[measure]) {
+            block.write(stream, 0b10, 2);
+            block.write(stream, xor >>> lastTrailing[measure],
+                64 - lastLeading[measure] - lastTrailing[measure]);
+        } else {
+            int meaningful = 64 - leading - trailing;
+            block.write(stream, 0b11, 2);
+            block.write(stream, leading, 5);
+            block.write(stream, meaningful, 6); // 64 is written as 0
+            block.write(stream, xor >>> trailing, meaningful);
+            lastLeading[measure] = leading;
+            lastTrailing[measure] = trailing;
+        }
+    }
+
+    /**
+     * This method decodes the values of the Measure observed from the time from, inclusive, to the
+     * time to, exclusive, and hands each of them to the visitor from the oldest. The blocks that
+     * end before the window are skipped without being decoded.
+     *
+     * @param measure the Measure to decode
+     * @param from    the start of the window in epoch seconds
+     * @param to      the end of the window in epoch seconds
+     * @param visitor receives the observations in the window
+     */
+    public void scan(WeatherTree.Measure measure, long from, long to, Visitor visitor) {
+        if (head < 0) {
+            return;
+        }
+        for (int i = 1; i <= BLOCKS; i++) {
+            Block block = blocks[(head + i) % BLOCKS];
+            if (block == null || block.lastTime < from) {
+                continue;
+            }
+            if (block.firstTime >= to) {
+                return;
+            }
+            long[] times = block.streams[0];
+            long[] values = block.streams[1 + measure.ordinal()];
+            int timeBit = 0;
+            int valueBit = 64;
+            long time = block.firstTime;
+            long delta = 0;
+            long value = read(values, 0, 64);
+            int leading = 0;
+            int trailing = 0;
+            for (int point = 0; point < block.count; point++) {
+                if (point > 0) {
+                    // the delta of deltas of the timestamp
+                    int prefix = 0;
+                    while (prefix < 4 && read(times, timeBit++, 1) == 1) {
+                        prefix++;
+                    }
+                    if (prefix > 0) {
+                        int bits = prefix == 1 ? 7 : prefix == 2 ? 9 : prefix == 3 ? 12 : 64;
+                        long deltaOfDelta = read(times, timeBit, bits);
+                        timeBit += bits;
+                        if (bits < 64) {
+                            deltaOfDelta = deltaOfDelta << (64 - bits) >> (64 - bits); // sign
+                        }
+                        delta += deltaOfDelta;
+                    }
+                    time += delta;
+                    // the XOR of the value
+                    if (read(values, valueBit++, 1) == 1) {
+                        if (read(values, valueBit++, 1) == 1) {
+                            leading = (int) read(values, valueBit, 5);
+                            int meaningful = (int) read(values, valueBit + 5, 6);
+                            valueBit += 11;
+                            if (meaningful == 0) {
+                                meaningful = 64;
+                            }
+                            trailing = 64 - leading - meaningful;
+                        }
+                        int meaningful = 64 - leading - trailing;
+                        value ^= read(values, valueBit, meaningful) << trailing;
+                        valueBit += meaningful;
+                    }
+                }
+                if (time >= to) {
+                    return;
+                }
+                if (time >= from) {
+                    visitor.accept(time, Double.longBitsToDouble(value));
+                }
+            }
+        }
+    }
+
+    /**
+     * This method gives out the number of observations in the history.
+     *
+     * @return the number of observations
+     */
+    public int size() {
+        int size = 0;
+        for (Block block : blocks) {
+            if (block != null) {
+                size += block.count;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * This method tells whether observations were added to the history since takeChanges or
+     * encodeAll was last called.
+     *
+     * @return true when a block has not been written since it changed
+     */
+    public boolean hasChanges() {
+        for (Block block : blocks) {
+            if (block != null && !block.written) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * This method encodes the blocks changed since they were last encoded, from the oldest, and
+     * counts them as written.
+     *
+     * @return the encoded blocks, each to be given to restore
+     */
+    public List<byte[]> takeChanges() {
+        return this.encode(false);
+    }
+
+    /**
+     * This method encodes every block of the history, from the oldest, and counts them as written.
+     *
+     * @return the encoded blocks, each to be given to restore
+     */
+    public List<byte[]> encodeAll() {
+        return this.encode(true);
+    }
+
+    /**
+     * The private helper method encodes the blocks, all of them or only the changed ones. Each is
+     * written with the state of the encoder, which is needed when it is restored as the newest
+     * block and more observations are added to it.
+     */
+    private List<byte[]> encode(boolean all) {
+        List<byte[]> encoded = new ArrayList<>();
+        if (head < 0) {
+            return encoded;
+        }
+        for (int i = 1; i <= BLOCKS; i++) {
+            Block block = blocks[(head + i) % BLOCKS];
+            if (block == null || (block.written && !all)) {
+                continue;
+            }
+            int words = 0;
+            for (int length : block.lengths) {
+                words += (length + 63) >>> 6;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(3 + 8 * 3 + MEASURES * 10
+                + block.streams.length * 2 + words * 8);
+            buffer.put((byte) MEASURES).putLong(block.firstTime).putLong(block.lastTime)
+                .put((byte) block.count).putLong(lastDelta);
+            for (int m = 0; m < MEASURES; m++) {
+                buffer.putLong(lastValues[m]).put((byte) lastLeading[m])
+                    .put((byte) lastTrailing[m]);
+            }
+            for (int stream = 0; stream < block.streams.length; stream++) {
+                buffer.putShort((short) block.lengths[stream]);
+                for (int w = 0; w < (block.lengths[stream] + 63) >>> 6; w++) {
+                    buffer.putLong(block.streams[stream][w]);
+                }
+            }
+            buffer.put((byte) (block == blocks[head] ? 1 : 0));
+            block.written = true;
+            encoded.add(buffer.array());
+        }
+        return encoded;
+    }
+
+    /**
+     * This method reads a block encoded by takeChanges or encodeAll back into the history. A block
+     * that starts at the same time as one in the history replaces it, since it is a later write
+     * of the same block, and a block newer than every other one becomes the newest, dropping the
+     * oldest block when the history is full.
+     *
+     * @param encoded an encoded block
+     * @throws IllegalArgumentException when the block is not one encoded by this class
+     */
+    public void restore(byte[] encoded) {
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        try {
+            if (buffer.get() != MEASURES) {
+                throw new IllegalArgumentException("The block is of another set of measures.");
+            }
+            Block block = new Block(buffer.getLong());
+            block.lastTime = buffer.getLong();
+            block.count = buffer.get();
+            long delta = buffer.getLong();
+            long[] values = new long[MEASURES];
+            int[] leading = new int[MEASURES];
+            int[] trailing = new int[MEASURES];
+            for (int m = 0; m < MEASURES; m++) {
+                values[m] = buffer.getLong();
+                leading[m] = buffer.get();
+                trailing[m] = buffer.get();
+            }
+            for (int stream = 0; stream < block.streams.length; stream++) {
+                int length = buffer.getShort() & 0xffff;
+                long[] words = new long[Math.max(1, (length + 63) >>> 6)];
+                for (int w = 0; w < (length + 63) >>> 6; w++) {
+                    words[w] = buffer.getLong();
+                }
+                block.streams[stream] = words;
+                block.lengths[stream] = length;
+            }
+            boolean newest = buffer.get() == 1;
+            if (block.count < 1 || block.count > BLOCK_POINTS || block.lastTime < block.firstTime
+                || buffer.hasRemaining()) {
+                throw new IllegalArgumentException("The block is not one of a WeatherHistory.");
+            }
+            block.written = true;
+            if (head >= 0 && blocks[head].firstTime == block.firstTime) {
+                blocks[head] = block;
+            } else if (head < 0 || block.firstTime > blocks[head].lastTime) {
+                if (head >= 0) {
+                    blocks[head].trim();
+                }
+                head = (head + 1) % BLOCKS;
+                blocks[head] = block;
+            } else {
+                for (int i = 0; i < BLOCKS; i++) {
+                    if (blocks[i] != null && blocks[i].firstTime == block.firstTime) {
+                        blocks[i] = block;
+                    }
+                }
+                return; // an older block does not carry the state of the encoder
+            }
+            if (newest) {
+                lastDelta = delta;
+                System.arraycopy(values, 0, lastValues, 0, MEASURES);
+                System.arraycopy(leading, 0, lastLeading, 0, MEASURES);
+                System.arraycopy(trailing, 0, lastTrailing, 0, MEASURES);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("The block is cut short.");
+        }
+    }
+
+    /**
+     * The private helper method reads bits of a stream as the low bits of a long.
+     */
+    private static long read(long[] words, int position, int bits) {
+        int index = position >>> 6;
+        int free = 64 - (position & 63);
+        long value;
+        if (bits <= free) {
+            value = words[index] >>> (free - bits);
+        } else {
+            value = words[index] << (bits - free) | words[index + 1] >>> (64 - (bits - free));
+        }
+        return bits == 64 ? value : value & ((1L << bits) - 1);
+    }
+
+    /**
+     * This method turns a markedTime into the epoch seconds used by the history. Like the
+     * WeatherLog, it takes the markedTime as if it was in UTC.
+     *
+     * @param time a markedTime
+     * @return the epoch seconds of it
+     */
+    public static long toSeconds(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    /**
+     * This method turns the epoch seconds used by the history back into a markedTime.
+     *
+     * @param seconds the epoch seconds
+     * @return the markedTime
+     */
+    public static LocalDateTime toLocalDateTime(long seconds) {
+        return LocalDateTime.ofEpochSecond(seconds, 0, ZoneOffset.UTC);
+    }
+}
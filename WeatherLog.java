@@ -0,0 +1,383 @@
+// --== CS400 File Header Information ==--
+// Name: Jiahe Jin
+// Email: jjin82@wisc.edu
+// Team: JB
+// Role: Back End Developer
+// TA: Harper
+// Lecturer: Florian Heimerl
+// Notes to Grader: The WeatherTree used to be serialized as a whole at the end of every command.
+// This class stores it as a log of fixed size records instead, so only the changed cities are
+// written each time. The histories of the cities are kept in a second file next to it.
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * This class keeps the WeatherTree cache on disk as an append only log. Every refreshed Weather
+ * Object is appended as one record of RECORD_BYTES bytes, and the tree is rebuilt by replaying the
+ * records in order, the later record of a city replacing the earlier one. A city evicted from the
+ * tree is written as a removal record, which deletes it again on replay. Each record carries a
+ * CRC32, so a write torn by a crash only loses the records it did not finish. When the log holds
+ * many more records than the tree has cities, it is compacted into one record per city.
+ *
+ * <p>The WeatherHistory of each city is kept in a history file beside the log, as its compressed
+ * blocks. Each entry holds one block of one city with a CRC32 of its own, and only the blocks
+ * that took new observations since the last write are appended. On replay a later entry of a
+ * block replaces the earlier one. The history file is compacted along with the log, keeping the
+ * blocks of the cities still in the tree.
+ *
+ * @author Jiahe Jin
+ */
+public class WeatherLog {
+    static final int RECORD_BYTES = 256;
+    private static final int MAGIC = 0x57524543; // "WREC"
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2; // only the city name of a removal record is used
+    private static final int CITY_BYTES = 100;
+    private static final int DESCRIPTION_BYTES = 48;
+    private static final int CITY_OFFSET = 104;
+    private static final int DESCRIPTION_OFFSET = CITY_OFFSET + CITY_BYTES;
+    private static final int CRC_OFFSET = RECORD_BYTES - 4;
+    private static final int COMPACT_SLACK = 32; // records allowed beyond twice the tree size
+    private static final int HISTORY_MAGIC = 0x57484953; // "WHIS"
+
+    private final Path path;
+    private final Path historyPath;
+    private long records; // number of valid records in the log file
+
+    /**
+     * The constructor sets up the log and the history file at the given paths. Nothing is read
+     * until replay is called.
+     *
+     * @param filename        path of the log file
+     * @param historyFilename path of the file of the histories of the cities
+     */
+    public WeatherLog(String filename, String historyFilename) {
+        this.path = Paths.get(filename);
+        this.historyPath = Paths.get(historyFilename);
+    }
+
+    /**
+     * This method rebuilds the WeatherTree by replaying every record of the log. A torn or
+     * corrupted record ends the replay, and the log is cut back to the last good record so the
+     * next append starts from a clean end.
+     *
+     * @return the rebuilt WeatherTree, or null when there is no log file yet
+     * @throws IOException when the log file cannot be read
+     */
+    public WeatherTree replay() throws IOException {
+        return this.replay(new Data());
+    }
+
+    /**
+     * This method rebuilds the WeatherTree like replay(), with the tree fetching cities from the
+     * given source.
+     *
+     * @param source where the rebuilt tree fetches the weather information of cities from
+     * @return the rebuilt WeatherTree, or null when there is no log file yet
+     * @throws IOException when the log file cannot be read
+     */
+    public WeatherTree replay(WeatherSource source) throws IOException {
+        WeatherTree tree = new WeatherTree(source, false);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+            records = 0;
+            while (true) {
+                record.clear();
+                while (record.hasRemaining() && channel.read(record) > 0) {
+                    // keep reading until the record is full or the file ends
+                }
+                if (record.hasRemaining() || !isValid(record)) {
+                    break;
+                }
+                if (record.get(4) == REMOVE) {
+                    tree.remove(decodeCity(record));
+                } else {
+                    tree.put(decode(record));
+                }
+                records++;
+            }
+            if (channel.size() > records * RECORD_BYTES) {
+                channel.truncate(records * RECORD_BYTES);
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        tree.restoreHistories(this.replayHistories());
+        return tree;
+    }
+
+    /**
+     * The private helper method reads the histories back from the history file. Like the log, a
+     * torn or corrupted entry ends the reading, and the file is cut back to the last good entry.
+     *
+     * @return the histories by lower case name of the city
+     */
+    private Map<String, WeatherHistory> replayHistories() throws IOException {
+        Map<String, WeatherHistory> histories = new HashMap<>();
+        ByteBuffer file;
+        try {
+            file = ByteBuffer.wrap(Files.readAllBytes(historyPath));
+        } catch (NoSuchFileException e) {
+            return histories;
+        }
+        int good = 0;
+        while (good + 10 <= file.limit() && file.getInt(good) == HISTORY_MAGIC) {
+            int cityLength = file.getShort(good + 4) & 0xffff;
+            if (cityLength > file.limit() - good - 10) {
+                break;
+            }
+            int blockLength = file.getInt(good + 6 + cityLength);
+            if (blockLength < 0 || blockLength > file.limit() - good - 14 - cityLength) {
+                break;
+            }
+            int end = good + 10 + cityLength + blockLength;
+            CRC32 crc = new CRC32();
+            crc.update(file.array(), good, end - good);
+            if (file.getInt(end) != (int) crc.getValue()) {
+                break;
+            }
+            String city = new String(file.array(), good + 6, cityLength, StandardCharsets.UTF_8);
+            WeatherHistory history = histories.computeIfAbsent(city, name -> new WeatherHistory());
+            try {
+                history.restore(Arrays.copyOfRange(file.array(), end - blockLength, end));
+            } catch (IllegalArgumentException e) {
+                break;
+            }
+            good = end + 4;
+        }
+        if (good < file.limit()) {
+            try (FileChannel channel = FileChannel.open(historyPath, StandardOpenOption.WRITE)) {
+                channel.truncate(good);
+            }
+        }
+        return histories;
+    }
+
+    /**
+     * This method appends the cities changed or evicted since the last write to the end of the
+     * log, then compacts the log when it has grown well past the size of the tree. Nothing is
+     * written when no city has changed.
+     *
+     * @param tree the WeatherTree whose changes are written
+     * @throws IOException when the log file cannot be written
+     */
+    public void append(WeatherTree tree) throws IOException {
+        writeHistories(historyPath, tree.takeHistoryChanges(), true);
+        Map<String, Weather> changes = tree.takeChanges();
+        if (changes.isEmpty()) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(changes.size() * RECORD_BYTES);
+        for (Map.Entry<String, Weather> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                encodeRemoval(change.getKey(), buffer);
+            } else {
+                encode(change.getValue(), buffer);
+            }
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            records = channel.size() / RECORD_BYTES;
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        records += changes.size();
+        if (records > 2L * tree.size() + COMPACT_SLACK) {
+            compact(tree);
+        }
+    }
+
+    /**
+     * This method rewrites the log as one record for each city in the tree. The new log is written
+     * next to the old one and then moved over it, so a crash leaves either of them complete.
+     *
+     * @param tree the WeatherTree being written
+     * @throws IOException when the log file cannot be written
+     */
+    public void compact(WeatherTree tree) throws IOException {
+        List<Weather> cities = tree.values();
+        ByteBuffer buffer = ByteBuffer.allocate(cities.size() * RECORD_BYTES);
+        for (Weather weather : cities) {
+            encode(weather, buffer);
+        }
+        buffer.flip();
+        Path temporary = Paths.get(path + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        records = cities.size();
+        Path historyTemporary = Paths.get(historyPath + ".tmp");
+        writeHistories(historyTemporary, tree.encodeHistories(), false);
+        Files.move(historyTemporary, historyPath, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The private helper method writes the blocks of the histories as entries into a history
+     * file, either at its end or as a new file that is forced to disk before it is moved over the
+     * old one. Nothing is appended when there are no blocks.
+     */
+    private static void writeHistories(Path file, Map<String, List<byte[]>> blocks,
+        boolean append) throws IOException {
+        int bytes = 0;
+        for (Map.Entry<String, List<byte[]>> city : blocks.entrySet()) {
+            for (byte[] block : city.getValue()) {
+                bytes += 14 + city.getKey().getBytes(StandardCharsets.UTF_8).length + block.length;
+            }
+        }
+        if (bytes == 0 && append) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        for (Map.Entry<String, List<byte[]>> city : blocks.entrySet()) {
+            byte[] name = city.getKey().getBytes(StandardCharsets.UTF_8);
+            for (byte[] block : city.getValue()) {
+                int start = buffer.position();
+                buffer.putInt(HISTORY_MAGIC).putShort((short) name.length).put(name)
+                    .putInt(block.length).put(block);
+                CRC32 crc = new CRC32();
+                crc.update(buffer.array(), start, buffer.position() - start);
+                buffer.putInt((int) crc.getValue());
+            }
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (!append) {
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * The private helper method writes one Weather Object as a record at the position of the
+     * buffer. Names longer than their fields are cut at a character boundary.
+     */
+    private static void encode(Weather weather, ByteBuffer buffer) {
+        int start = buffer.position();
+        byte[] city = truncate(weather.getCity(), CITY_BYTES);
+        byte[] description = truncate(weather.getWeatherDescription(), DESCRIPTION_BYTES);
+        buffer.putInt(MAGIC).put(PUT).put((byte) city.length).put((byte) description.length)
+            .put((byte) 0);
+        buffer.putLong(weather.getMarkedTime().toInstant(ZoneOffset.UTC).toEpochMilli());
+        buffer.putDouble(weather.getLongitude()).putDouble(weather.getLatitude())
+            .putDouble(weather.getTemperature()).putDouble(weather.getApparentTemperature())
+            .putDouble(weather.getMinTemperature()).putDouble(weather.getMaxTemperature())
+            .putDouble(weather.getPressure()).putDouble(weather.getHumidity())
+            .putDouble(weather.getWindSpeed()).putDouble(weather.getVisibility());
+        buffer.position(start + CITY_OFFSET);
+        buffer.put(city);
+        buffer.position(start + DESCRIPTION_OFFSET);
+        buffer.put(description);
+        seal(buffer, start);
+    }
+
+    /**
+     * The private helper method writes the removal of a city as a record at the position of the
+     * buffer. Every field but the city name is left as zero.
+     */
+    private static void encodeRemoval(String city, ByteBuffer buffer) {
+        int start = buffer.position();
+        byte[] name = truncate(city, CITY_BYTES);
+        buffer.putInt(MAGIC).put(REMOVE).put((byte) name.length);
+        buffer.position(start + CITY_OFFSET);
+        buffer.put(name);
+        seal(buffer, start);
+    }
+
+    /**
+     * The private helper method writes the CRC32 of the record starting at start, leaving the
+     * buffer at the end of the record.
+     */
+    private static void seal(ByteBuffer buffer, int start) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), start, CRC_OFFSET);
+        buffer.position(start + CRC_OFFSET);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    /**
+     * The private helper method reads the Weather Object out of a full record buffer.
+     */
+    private static Weather decode(ByteBuffer record) {
+        int descriptionLength = record.get(6) & 0xff;
+        record.position(8);
+        long markedTime = record.getLong();
+        double[] values = new double[10];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = record.getDouble();
+        }
+        String city = decodeCity(record);
+        String description = new String(record.array(), DESCRIPTION_OFFSET, descriptionLength,
+            StandardCharsets.UTF_8);
+        Weather weather =
+            new Weather(city, values[0], values[1], description, values[2], values[3], values[4],
+                values[5], values[6], values[7], values[8], values[9]);
+        weather.setMarkedTime(LocalDateTime.ofEpochSecond(Math.floorDiv(markedTime, 1000),
+            Math.floorMod(markedTime, 1000) * 1_000_000, ZoneOffset.UTC));
+        return weather;
+    }
+
+    /**
+     * The private helper method reads the city name out of a full record buffer.
+     */
+    private static String decodeCity(ByteBuffer record) {
+        return new String(record.array(), CITY_OFFSET, record.get(5) & 0xff,
+            StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The private helper method checks the magic number, kind, lengths and CRC32 of a record.
+     */
+    private static boolean isValid(ByteBuffer record) {
+        if (record.getInt(0) != MAGIC || (record.get(4) != PUT && record.get(4) != REMOVE)
+            || (record.get(5) & 0xff) > CITY_BYTES
+            || (record.get(6) & 0xff) > DESCRIPTION_BYTES) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, CRC_OFFSET);
+        return record.getInt(CRC_OFFSET) == (int) crc.getValue();
+    }
+
+    /**
+     * The private helper method encodes a string as UTF-8 of at most the given number of bytes,
+     * dropping whole characters from the end when it is too long.
+     */
+    private static byte[] truncate(String text, int maxBytes) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        while (bytes.length > maxBytes) {
+            text = text.substring(0, text.length() - 1);
+            bytes = text.getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+}
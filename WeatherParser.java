@@ -0,0 +1,523 @@
+// --== CS400 File Header Information ==--
+// Name: Jiahe Jin
+// Email: jjin82@wisc.edu
+// Team: JB
+// Role: Back End Developer
+// TA: Harper
+// Lecturer: Florian Heimerl
+// Notes to Grader: Data used to build the whole json-simple tree of every response and turn each
+// number into a String and back. This class reads the few fields it needs straight from the bytes.
+import org.json.simple.parser.ParseException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class reads the Weather Object out of the response of the weather api in one pass over its
+ * bytes. Only the fields used by Weather are read: the numbers go straight from their digits into
+ * doubles, the name and the weather description are the only Strings made, and every other value
+ * is skipped without being parsed. The response may be spread over any number of lines. A
+ * response of the group endpoint is read the same way, one city after another.
+ *
+ * @author Jiahe Jin
+ */
+class WeatherParser {
+    // the slots of the numbers of the Weather Object
+    private static final int LONGITUDE = 0;
+    private static final int LATITUDE = 1;
+    private static final int TEMPERATURE = 2;
+    private static final int APPARENT_TEMPERATURE = 3;
+    private static final int MIN_TEMPERATURE = 4;
+    private static final int MAX_TEMPERATURE = 5;
+    private static final int PRESSURE = 6;
+    private static final int HUMIDITY = 7;
+    private static final int WIND_SPEED = 8;
+    private static final int VISIBILITY = 9;
+    private static final int NUMBERS = 10;
+    private static final int ID = 10; // only read for the cities of a group response
+    // the fields of the objects coord, main and wind, and the slots they are read into
+    private static final byte[][] COORD = keys("lon", "lat");
+    private static final int[] COORD_SLOTS = {LONGITUDE, LATITUDE};
+    private static final byte[][] MAIN =
+        keys("temp", "feels_like", "temp_min", "temp_max", "pressure", "humidity");
+    private static final int[] MAIN_SLOTS = {TEMPERATURE, APPARENT_TEMPERATURE, MIN_TEMPERATURE,
+        MAX_TEMPERATURE, PRESSURE, HUMIDITY};
+    private static final byte[][] WIND = keys("speed");
+    private static final int[] WIND_SLOTS = {WIND_SPEED};
+    private static final String[] PATHS = {"coord.lon", "coord.lat", "main.temp",
+        "main.feels_like", "main.temp_min", "main.temp_max", "main.pressure", "main.humidity",
+        "wind.speed", "visibility"};
+    private static final byte[] NAME = key("name");
+    private static final byte[] COORD_KEY = key("coord");
+    private static final byte[] MAIN_KEY = key("main");
+    private static final byte[] WIND_KEY = key("wind");
+    private static final byte[] VISIBILITY_KEY = key("visibility");
+    private static final byte[] WEATHER_KEY = key("weather");
+    private static final byte[] DESCRIPTION_KEY = key("description");
+    private static final byte[] ID_KEY = key("id");
+    private static final byte[] LIST_KEY = key("list");
+    // the powers of ten that a double holds exactly
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final byte[] in;
+    private int pos = 0;
+    private int keyStart; // the bytes of the last key read, without the quotes
+    private int keyEnd;
+    private final double[] numbers = new double[NUMBERS + 1];
+    private int found = 0; // a bit for each slot of numbers read
+    private String name;
+    private String description;
+
+    private WeatherParser(byte[] in) {
+        this.in = in;
+    }
+
+    /**
+     * This method reads the Weather Object out of a response of the weather api.
+     *
+     * @param body the bytes of the response in UTF-8
+     * @return the Weather Object of the city of the response
+     * @throws ParseException when the response is not JSON or misses a field of Weather
+     */
+    static Weather parse(byte[] body) throws ParseException {
+        return new WeatherParser(body).readCity();
+    }
+
+    /**
+     * This method reads the Weather Objects out of a response of the group endpoint of the
+     * weather api, which lists the cities in the array of its field list.
+     *
+     * @param body the bytes of the response in UTF-8
+     * @return the Weather Objects of the cities of the response by their openweathermap ids
+     * @throws ParseException when the response is not JSON or a city misses a field of Weather
+     */
+    static Map<Integer, Weather> parseGroup(byte[] body) throws ParseException {
+        WeatherParser parser = new WeatherParser(body);
+        Map<Integer, Weather> cities = new HashMap<>();
+        parser.expect('{');
+        if (parser.tryRead('}')) {
+            return cities;
+        }
+        do {
+            parser.readKey();
+            parser.expect(':');
+            if (!parser.isKey(LIST_KEY)) {
+                parser.skipValue();
+                continue;
+            }
+            parser.expect('[');
+            if (parser.tryRead(']')) {
+                continue;
+            }
+            do {
+                Weather city = parser.readCity();
+                if ((parser.found & 1 << ID) == 0) {
+                    throw parser.missing("list[].id");
+                }
+                cities.put((int) parser.numbers[ID], city);
+            } while (parser.tryRead(','));
+            parser.expect(']');
+        } while (parser.tryRead(','));
+        parser.expect('}');
+        return cities;
+    }
+
+    /**
+     * The private helper method reads the object of one city and checks that every field of
+     * Weather was in it.
+     */
+    private Weather readCity() throws ParseException {
+        found = 0;
+        name = null;
+        description = null;
+        expect('{');
+        if (!tryRead('}')) {
+            do {
+                readKey();
+                expect(':');
+                if (isKey(NAME)) {
+                    name = readString();
+                } else if (isKey(COORD_KEY)) {
+                    readFields(COORD, COORD_SLOTS);
+                } else if (isKey(MAIN_KEY)) {
+                    readFields(MAIN, MAIN_SLOTS);
+                } else if (isKey(WIND_KEY)) {
+                    readFields(WIND, WIND_SLOTS);
+                } else if (isKey(VISIBILITY_KEY)) {
+                    readNumber(VISIBILITY);
+                } else if (isKey(WEATHER_KEY)) {
+                    readWeather();
+                } else if (isKey(ID_KEY) && peek() != 'n') {
+                    readNumber(ID);
+                } else {
+                    skipValue();
+                }
+            } while (tryRead(','));
+            expect('}');
+        }
+        for (int slot = 0; slot < NUMBERS; slot++) {
+            if ((found & 1 << slot) == 0) {
+                throw missing(PATHS[slot]);
+            }
+        }
+        if (name == null) {
+            throw missing("name");
+        }
+        if (description == null) {
+            throw missing("weather[0].description");
+        }
+        double[] n = numbers;
+        return new Weather(name, n[LONGITUDE], n[LATITUDE], description, n[TEMPERATURE],
+            n[APPARENT_TEMPERATURE], n[MIN_TEMPERATURE], n[MAX_TEMPERATURE], n[PRESSURE],
+            n[HUMIDITY], n[WIND_SPEED], n[VISIBILITY]);
+    }
+
+    /**
+     * The private helper method reads an object, reading the fields with the given keys into their
+     * slots and skipping every other field.
+     */
+    private void readFields(byte[][] keys, int[] slots) throws ParseException {
+        expect('{');
+        if (tryRead('}')) {
+            return;
+        }
+        do {
+            readKey();
+            expect(':');
+            int field = 0;
+            while (field < keys.length && !isKey(keys[field])) {
+                field++;
+            }
+            if (field < keys.length) {
+                readNumber(slots[field]);
+            } else {
+                skipValue();
+            }
+        } while (tryRead(','));
+        expect('}');
+    }
+
+    /**
+     * The private helper method reads the array of weather conditions, taking the description of
+     * the first one.
+     */
+    private void readWeather() throws ParseException {
+        expect('[');
+        if (tryRead(']')) {
+            return;
+        }
+        boolean first = true;
+        do {
+            if (first && peek() == '{') {
+                expect('{');
+                if (!tryRead('}')) {
+                    do {
+                        readKey();
+                        expect(':');
+                        if (isKey(DESCRIPTION_KEY) && peek() == '"') {
+                            description = readString();
+                        } else {
+                            skipValue();
+                        }
+                    } while (tryRead(','));
+                    expect('}');
+                }
+            } else {
+                skipValue();
+            }
+            first = false;
+        } while (tryRead(','));
+        expect(']');
+    }
+
+    /**
+     * The private helper method reads a key and remembers where its bytes are, without making a
+     * String of it.
+     */
+    private void readKey() throws ParseException {
+        expect('"');
+        keyStart = pos;
+        skipStringBody();
+        keyEnd = pos - 1;
+    }
+
+    /**
+     * The private helper method checks if the last key read is the given one.
+     */
+    private boolean isKey(byte[] key) {
+        int length = keyEnd - keyStart;
+        if (length != key.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (in[keyStart + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The private helper method reads a number into its slot. A number of up to 18 significant
+     * digits with a power of ten a double holds exactly is worked out from its digits, which
+     * gives the same double as Double.parseDouble; any other number is handed to it.
+     */
+    private void readNumber(int slot) throws ParseException {
+        skipSpace();
+        int start = pos;
+        boolean negative = tryByte('-');
+        long mantissa = 0;
+        int digits = 0; // significant digits in the mantissa
+        int exponent = 0;
+        boolean exact = true; // false when digits were left out of the mantissa
+        boolean any = false;
+        while (pos < in.length && in[pos] >= '0' && in[pos] <= '9') {
+            int digit = in[pos++] - '0';
+            any = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + digit;
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+                exact &= digit == 0;
+            }
+        }
+        if (tryByte('.')) {
+            while (pos < in.length && in[pos] >= '0' && in[pos] <= '9') {
+                int digit = in[pos++] - '0';
+                any = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + digit;
+                    exponent--;
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                } else {
+                    exact &= digit == 0;
+                }
+            }
+        }
+        if (!any) {
+            throw unexpected();
+        }
+        if (tryByte('e') || tryByte('E')) {
+            boolean negativeExponent = tryByte('-');
+            if (!negativeExponent) {
+                tryByte('+');
+            }
+            int power = 0;
+            boolean powerDigits = false;
+            while (pos < in.length && in[pos] >= '0' && in[pos] <= '9') {
+                power = Math.min(power * 10 + in[pos++] - '0', 100_000);
+                powerDigits = true;
+            }
+            if (!powerDigits) {
+                throw unexpected();
+            }
+            exponent += negativeExponent ? -power : power;
+        }
+        double value;
+        if (exact && mantissa < 1L << 53 && exponent >= -22 && exponent <= 22) {
+            value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent]
+                : mantissa * POWERS_OF_TEN[exponent];
+            if (negative) {
+                value = -value;
+            }
+        } else {
+            value = Double.parseDouble(
+                new String(in, start, pos - start, StandardCharsets.ISO_8859_1));
+        }
+        numbers[slot] = value;
+        found |= 1 << slot;
+    }
+
+    /**
+     * The private helper method reads a string value, decoding its escapes.
+     */
+    private String readString() throws ParseException {
+        expect('"');
+        int start = pos;
+        while (pos < in.length && in[pos] != '"' && in[pos] != '\\') {
+            pos++;
+        }
+        if (pos < in.length && in[pos] == '"') {
+            return new String(in, start, pos++ - start, StandardCharsets.UTF_8);
+        }
+        // the string has escapes, decode it a piece at a time
+        StringBuilder sb = new StringBuilder(new String(in, start, pos - start,
+            StandardCharsets.UTF_8));
+        while (true) {
+            if (pos >= in.length) {
+                throw unexpected();
+            }
+            byte b = in[pos++];
+            if (b == '"') {
+                return sb.toString();
+            }
+            if (b != '\\') {
+                int piece = pos - 1;
+                while (pos < in.length && in[pos] != '"' && in[pos] != '\\') {
+                    pos++;
+                }
+                sb.append(new String(in, piece, pos - piece, StandardCharsets.UTF_8));
+                continue;
+            }
+            if (pos >= in.length) {
+                throw unexpected();
+            }
+            byte escape = in[pos++];
+            switch (escape) {
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append((char) escape);
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > in.length) {
+                        throw unexpected();
+                    }
+                    int c = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int hex = Character.digit(in[pos++], 16);
+                        if (hex < 0) {
+                            throw unexpected();
+                        }
+                        c = c * 16 + hex;
+                    }
+                    sb.append((char) c);
+                    break;
+                default:
+                    throw unexpected();
+            }
+        }
+    }
+
+    /**
+     * The private helper method moves past the rest of a string whose opening quote was read.
+     */
+    private void skipStringBody() throws ParseException {
+        while (pos < in.length) {
+            byte b = in[pos++];
+            if (b == '"') {
+                return;
+            }
+            if (b == '\\') {
+                pos++;
+            }
+        }
+        throw unexpected();
+    }
+
+    /**
+     * The private helper method moves past a value of any kind, counting the brackets of the
+     * objects and arrays in it instead of parsing them.
+     */
+    private void skipValue() throws ParseException {
+        skipSpace();
+        int depth = 0;
+        while (pos < in.length) {
+            byte b = in[pos];
+            if (b == '"') {
+                pos++;
+                skipStringBody();
+            } else if (b == '{' || b == '[') {
+                depth++;
+                pos++;
+            } else if (b == '}' || b == ']') {
+                if (depth == 0) {
+                    return; // the end of the object or array the value is in
+                }
+                depth--;
+                pos++;
+            } else if (b == ',' && depth == 0) {
+                return;
+            } else {
+                pos++; // a byte of a number, a literal, a separator or space
+            }
+            if (depth == 0 && (b == '"' || b == '}' || b == ']')) {
+                return;
+            }
+        }
+        if (depth != 0) {
+            throw unexpected();
+        }
+    }
+
+    private void skipSpace() {
+        while (pos < in.length && (in[pos] == ' ' || in[pos] == '\n' || in[pos] == '\r'
+            || in[pos] == '\t')) {
+            pos++;
+        }
+    }
+
+    private byte peek() {
+        skipSpace();
+        return pos < in.length ? in[pos] : 0;
+    }
+
+    private boolean tryByte(char c) {
+        if (pos < in.length && in[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean tryRead(char c) {
+        skipSpace();
+        return tryByte(c);
+    }
+
+    private void expect(char c) throws ParseException {
+        if (!tryRead(c)) {
+            throw unexpected();
+        }
+    }
+
+    private ParseException unexpected() {
+        return new ParseException(pos, ParseException.ERROR_UNEXPECTED_CHAR,
+            pos < in.length ? (char) in[pos] : null);
+    }
+
+    private ParseException missing(String path) {
+        return new ParseException(pos, ParseException.ERROR_UNEXPECTED_EXCEPTION,
+            "missing field " + path);
+    }
+
+    private static byte[] key(String key) {
+        return key.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[][] keys(String... keys) {
+        byte[][] bytes = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            bytes[i] = key(keys[i]);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,469 @@
+// --== CS400 File Header Information ==--
+// Name: Yunzhao Liu
+// Email: liu995@wisc.edu
+// Team: JB
+// Role: Front End Developer
+// TA: Harper
+// Lecturer: Florian Heimerl
+// Notes to Grader: N/A
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+import org.json.simple.parser.ParseException;
+
+/**
+ * the favorite list, WeatherTree and city name list of weather app, loaded once and shared by
+ * every command run in it.
+ *
+ * @author Yunzhao Liu
+ */
+public class WeatherSession {
+    private ArrayList<String> favoriteList;
+    private WeatherTree tree;
+    private CityNameList cityNameList;
+    private final boolean writeEachCommand;
+    private boolean favoriteListChanged; // not written to cache yet
+    private final Object writing = new Object(); // keeps the writes of the caches in order
+
+    /**
+     * load the favorite list from cache. the WeatherTree and city name list are loaded when a
+     * command first needs them. the caches are written at the end of every command.
+     */
+    public WeatherSession() {
+        this(true);
+    }
+
+    /**
+     * load the favorite list from cache. the WeatherTree and city name list are loaded when a
+     * command first needs them.
+     *
+     * @param writeEachCommand true to write the caches at the end of every command, false to
+     *                         leave them to flush
+     */
+    public WeatherSession(boolean writeEachCommand) {
+        this.writeEachCommand = writeEachCommand;
+        favoriteList = WeatherApp.loadFavoriteList();
+    }
+
+    /**
+     * get a copy of the favorite list
+     *
+     * @return the favorite list
+     */
+    public synchronized ArrayList<String> getFavoriteList() {
+        return new ArrayList<>(favoriteList);
+    }
+
+    /**
+     * get the WeatherTree, loading it from cache the first time
+     *
+     * @return the WeatherTree
+     */
+    public synchronized WeatherTree getTree() {
+        if (tree == null) {
+            tree = WeatherApp.loadWeatherTree();
+        }
+        return tree;
+    }
+
+    /**
+     * get the city name list, loading it from cache the first time
+     *
+     * @return the city name list
+     */
+    private synchronized CityNameList getCityNameList() {
+        if (cityNameList == null) {
+            cityNameList = WeatherApp.loadCityNameList();
+        }
+        return cityNameList;
+    }
+
+    /**
+     * write the WeatherTree and the favorite list to cache if they changed since the last write.
+     * the session lock is only held to take them, so the other commands do not wait for the
+     * fetches the write of the tree waits for
+     */
+    public void flush() {
+        synchronized (writing) {
+            WeatherTree written;
+            ArrayList<String> favorites = null;
+            synchronized (this) {
+                written = tree;
+                if (favoriteListChanged) {
+                    favorites = new ArrayList<>(favoriteList);
+                    favoriteListChanged = false;
+                }
+            }
+            if (written != null) {
+                WeatherApp.writeWeatherTree(written);
+            }
+            if (favorites != null) {
+                WeatherApp.writeFavoriteList(favorites);
+            }
+        }
+    }
+
+    /**
+     * write the caches when the session writes them after every command
+     */
+    private void save() {
+        if (writeEachCommand) {
+            flush();
+        }
+    }
+
+    /**
+     * print the lines 10 at a time, waiting for an empty line from in before the next page
+     *
+     * @param iter      the lines
+     * @param out       where the lines are printed
+     * @param in        where to read whether to show the next page, or null to show every page
+     *                  at once
+     * @param pageBreak the line printed after each page instead of waiting, or null
+     */
+    private static void printPages(Iterator<String> iter, PrintStream out, Scanner in,
+            String pageBreak) {
+        loop: while (true) {
+            for (int i = 0; i < 10; i++) {
+                if (iter.hasNext()) {
+                    out.println(iter.next());
+                } else {
+                    break loop;
+                }
+            }
+            if (pageBreak != null) {
+                out.println(pageBreak);
+            } else if (in != null && (!in.hasNextLine() || !in.nextLine().trim().equals(""))) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * the line printed for a city whose weather information could not be fetched
+     *
+     * @param city the name of the city
+     * @param e    why the fetch failed
+     * @return the line of the failure
+     */
+    private static String failure(String city, Exception e) {
+        if (e instanceof WeatherSource.StatusException
+                && ((WeatherSource.StatusException) e).getStatus() == 429) {
+            return "Exceed the call limit of the openweathermap api id";
+        }
+        return "Failing to update the newest Weather Information for " + city;
+    }
+
+    /**
+     * the lines of the cached cities whose names begin with the prefix, read from the tree a page
+     * at a time as they are printed
+     *
+     * @param tree   the WeatherTree
+     * @param prefix the beginning of the city names
+     * @return the lines of the cached cities
+     */
+    private static Iterator<String> cachedLines(WeatherTree tree, String prefix) {
+        return new Iterator<String>() {
+            private List<Weather> page = tree.cached(prefix, null, 10);
+            private int next = 0;
+
+            @Override public boolean hasNext() {
+                if (next == page.size() && page.size() == 10) {
+                    page = tree.cached(prefix, page.get(9).getCity(), 10);
+                    next = 0;
+                }
+                return next < page.size();
+            }
+
+            @Override public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Weather weather = page.get(next++);
+                return weather.getCity() + "     --" + weather.getMarkedTime();
+            }
+        };
+    }
+
+    /**
+     * the output of one command, kept while the command runs and printed after it, so a user
+     * paging through a long answer does not hold up the write of the caches
+     */
+    private static class Output {
+        private final ArrayList<Iterable<String>> sections = new ArrayList<>();
+        private final ArrayList<Boolean> paged = new ArrayList<>();
+        private ArrayList<String> lines; // the last section when it is not paged
+
+        /**
+         * add a line to the output
+         *
+         * @param line the line
+         */
+        void println(String line) {
+            if (lines == null) {
+                lines = new ArrayList<>();
+                sections.add(lines);
+                paged.add(false);
+            }
+            lines.add(line);
+        }
+
+        /**
+         * add lines to the output that are shown 10 at a time
+         *
+         * @param iter the lines
+         */
+        void page(Iterator<String> iter) {
+            sections.add(() -> iter);
+            paged.add(true);
+            lines = null;
+        }
+
+        /**
+         * print the output
+         *
+         * @param out       where the output is printed
+         * @param in        where to read whether to show the next page, or null to show every page
+         * @param pageBreak the line printed after each page instead of waiting, or null
+         */
+        void printTo(PrintStream out, Scanner in, String pageBreak) {
+            for (int i = 0; i < sections.size(); i++) {
+                boolean isPaged = paged.get(i);
+                printPages(sections.get(i).iterator(), out, isPaged ? in : null,
+                        isPaged ? pageBreak : null);
+            }
+        }
+    }
+
+    /**
+     * run one command of weather app against this session.
+     *
+     * @param args the command line arguments of the command
+     * @param out  where the output of the command is printed
+     * @param in   where the search command reads whether to show the next page, or null to show
+     *             every page at once
+     * @throws IOException when fetching the weather information meets an error
+     */
+    public void run(String[] args, PrintStream out, Scanner in) throws IOException {
+        run(args, out, in, null);
+    }
+
+    /**
+     * run one command of weather app against this session for a client that pages the output
+     * itself, such as a client of the daemon.
+     *
+     * @param args      the command line arguments of the command
+     * @param out       where the output of the command is printed
+     * @param pageBreak the line printed after each page of a long answer, where the client waits
+     *                  for the user
+     * @throws IOException when fetching the weather information meets an error
+     */
+    public void run(String[] args, PrintStream out, String pageBreak) throws IOException {
+        run(args, out, null, pageBreak);
+    }
+
+    /**
+     * run one command and print its output, then write the caches when they are written after
+     * every command
+     */
+    private void run(String[] args, PrintStream out, Scanner in, String pageBreak)
+            throws IOException {
+        Output output = new Output();
+        boolean changed;
+        try {
+            changed = execute(args, output);
+        } finally {
+            output.printTo(out, in, pageBreak);
+        }
+        // written after the output, since it waits for the fetches left in the background
+        if (changed) {
+            save();
+        }
+    }
+
+    /**
+     * run one command of weather app, keeping its output to be printed after it. the session lock
+     * is only taken to change the favorite list, so a command waiting for the api does not hold
+     * up the commands of the other clients
+     *
+     * @param args the command line arguments of the command
+     * @param out  where the output of the command is kept
+     * @return true when the caches are to be written after the output is printed
+     * @throws IOException when fetching the weather information meets an error
+     */
+    private boolean execute(String[] args, Output out) throws IOException {
+        WeatherTree tree = getTree();
+        ArrayList<String> favorites = getFavoriteList(); // a copy, the list changes under the lock
+        // when no argument, print weather information of favorite list
+        if (args.length == 0) {
+            if (favorites.isEmpty()) {
+                out.println(
+                        "favorite list is empty. \nuse --add to add city into the list. \nuse --help to see the help document.");
+            } else {
+                tree.refresh(favorites, getCityNameList()::id);
+                for (String city : favorites) {
+                    try {
+                        out.println(tree.getImportantInfo(city));
+                    } catch (IOException | ParseException e) {
+                        out.println(failure(city, e));
+                    }
+                }
+                return true;
+            }
+        } else {
+            ArgumentParser parser = new ArgumentParser(args);
+            try {
+                parser.parseArgument();
+            } catch (IllegalArgumentException e) {
+                out.println(e.getMessage());
+                return false;
+            }
+            // with --detail only, print weather information of favorite list in detail mode
+            if (args.length == 1 && parser.isArgDetail()) {
+                if (favorites.isEmpty()) {
+                    out.println("favorite list is empty. \nuse --add to add city into the list.");
+                } else {
+                    tree.refresh(favorites, getCityNameList()::id);
+                    for (String city : favorites) {
+                        try {
+                            out.println(tree.getDetailInfo(city));
+                        } catch (IOException | ParseException e) {
+                            out.println(failure(city, e));
+                        }
+                    }
+                    return true;
+                }
+            } else {
+                // other commands
+                if (parser.isArgHelp()) {
+                    out.println(WeatherApp.help_document);
+                }
+                if (parser.isArgVersion()) {
+                    out.println(WeatherApp.version_document);
+                }
+                if (parser.getAddCities() != null) {
+                    CityNameList cities = getCityNameList();
+                    synchronized (this) {
+                        for (String city : parser.getAddCities()) {
+                            if (!cities.contains(city)) {
+                                out.println("\"" + city + "\" does not in the dataset");
+                                continue;
+                            }
+                            if (!favoriteList.contains(city)) {
+                                favoriteList.add(city);
+                            } else {
+                                out.println("city \"" + city + "\" already in the favorite list");
+                            }
+                        }
+                        favoriteListChanged = true;
+                        favorites = getFavoriteList();
+                    }
+                }
+                if (parser.getRemoveCities() != null) {
+                    synchronized (this) {
+                        for (String city : parser.getRemoveCities()) {
+                            if (!favoriteList.remove(city)) {
+                                out.println("city \"" + city + "\" does not in the favorite list");
+                            }
+                        }
+                        favoriteListChanged = true;
+                        favorites = getFavoriteList();
+                    }
+                }
+                if (parser.isArgList()) {
+                    for (String city : favorites) {
+                        out.println(city);
+                    }
+                }
+                if (parser.getRequestCities() != null) {
+                    for (String city : parser.getRequestCities()) {
+                        if (!getCityNameList().contains(city)) {
+                            out.println("\"" + city + "\" does not in the dataset");
+                            continue;
+                        }
+                        try {
+                            if (parser.isArgDetail()) {
+                                out.println(tree.getDetailInfo(city));
+                            } else {
+                                out.println(tree.getImportantInfo(city));
+                            }
+                        } catch (IOException | ParseException e) {
+                            out.println(failure(city, e));
+                        }
+                    }
+                }
+                if (parser.getSearchCity() != null) {
+                    Iterator<String> iter;
+                    if (parser.getSearchCityNation() != null) {
+                        iter = getCityNameList().search(parser.getSearchCity(), parser.getSearchCityNation());
+                    } else {
+                        iter = getCityNameList().search(parser.getSearchCity());
+                    }
+
+                    out.page(iter);
+                }
+                if (parser.getNear() != null) {
+                    double[] near = parser.getNear();
+                    out.page(getCityNameList().nearest(near[0], near[1], parser.getNearCount())
+                        .iterator());
+                }
+                if (parser.getWithin() != null) {
+                    double[] within = parser.getWithin();
+                    out.page(getCityNameList().within(within[0], within[1], within[2])
+                        .iterator());
+                }
+                if (parser.getCachedCity() != null) {
+                    out.page(cachedLines(tree, parser.getCachedCity()));
+                }
+                if (parser.getTop() != null) {
+                    WeatherTree.Measure measure = parser.getTop();
+                    for (Weather weather : tree.top(measure, parser.getTopCount())) {
+                        out.println(weather.getCity() + "     --" + measure.describe(weather));
+                    }
+                }
+                if (parser.getAbove() != null) {
+                    WeatherTree.Measure measure = parser.getAbove();
+                    ArrayList<String> lines = new ArrayList<>();
+                    for (Weather weather : tree.above(measure, parser.getAboveValue())) {
+                        lines.add(weather.getCity() + "     --" + measure.describe(weather));
+                    }
+                    out.page(lines.iterator());
+                }
+                if (parser.getHistoryCity() != null) {
+                    WeatherTree.Measure measure = parser.getHistoryMeasure();
+                    LocalDateTime now = LocalDateTime.now();
+                    ArrayList<String> lines = new ArrayList<>();
+                    boolean found = tree.history(parser.getHistoryCity(), measure,
+                        now.minusHours(parser.getHistoryHours()), now.plusSeconds(1),
+                        (time, value) -> lines.add(WeatherHistory.toLocalDateTime(time)
+                            + "     --" + measure.describe(value)));
+                    if (!found) {
+                        out.println("city \"" + parser.getHistoryCity() + "\" is not cached");
+                    }
+                    out.page(lines.iterator());
+                }
+                if (parser.isArgCleanCache()) {
+                    synchronized (this) {
+                        WeatherApp.deleteFile(WeatherApp.weatherDataCache);
+                        WeatherApp.deleteFile(WeatherApp.weatherHistoryCache);
+                        WeatherApp.deleteFile(WeatherApp.cityDataCache);
+                        WeatherApp.deleteFile(WeatherApp.favoriteListCache);
+                        favoriteList = new ArrayList<>();
+                        favoriteListChanged = false;
+                        this.tree = null;
+                        cityNameList = null;
+                    }
+                } else {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
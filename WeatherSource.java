@@ -0,0 +1,87 @@
+// --== CS400 File Header Information ==--
+// Name: Jiahe Jin
+// Email: jjin82@wisc.edu
+// Team: JB
+// Role: Back End Developer
+// TA: Harper
+// Lecturer: Florian Heimerl
+// Notes to Grader: WeatherTree used to make its own Data, so it could only ever talk to the real
+// api. It takes a WeatherSource now, which can also be the FixtureWeatherSource or a Data pointed
+// at the LocalWeatherServer.
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This interface is where the WeatherTree gets the weather information of cities from. Data gets
+ * it from the openweathermap api; FixtureWeatherSource makes it up in memory.
+ *
+ * @author Jiahe Jin
+ */
+public interface WeatherSource {
+    int GROUP_SIZE = 20; // the most cities updateGroupAsync takes at once
+
+    /**
+     * This method gets the weather information of the specific city, waiting for it.
+     *
+     * @param name the name of a city
+     * @return Weather Object which includes all weather information of this city
+     * @throws IOException    when the source cannot be reached or answers with an error
+     * @throws ParseException when the answer of the source cannot be read
+     */
+    Weather update(String name) throws IOException, ParseException;
+
+    /**
+     * This method gets the weather information of the specific city without blocking the caller.
+     * The future fails with the same IOException or ParseException that update throws, wrapped in
+     * a CompletionException.
+     *
+     * @param name the name of a city
+     * @return the future of the Weather Object of this city
+     */
+    CompletableFuture<Weather> updateAsync(String name);
+
+    /**
+     * This method gets the weather information of up to GROUP_SIZE cities at once by their
+     * openweathermap ids, without blocking the caller. A city the source does not know is left
+     * out of the answer.
+     *
+     * @param ids the openweathermap ids of the cities
+     * @return the future of the Weather Objects of the cities by their ids, which fails with an
+     * IOException or ParseException wrapped in a CompletionException
+     * @throws IllegalArgumentException when there are no ids or more than GROUP_SIZE
+     */
+    CompletableFuture<Map<Integer, Weather>> updateGroupAsync(int[] ids);
+
+    /**
+     * The IOException of a source that answered with an HTTP error status, such as 429 when the
+     * calls went over the rate limit or 500 when the source failed.
+     */
+    class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        /**
+         * The constructor keeps the status with the message.
+         *
+         * @param status  the HTTP status of the answer
+         * @param message the detail message
+         */
+        public StatusException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        /**
+         * The accessor of status
+         *
+         * @return the HTTP status of the answer
+         */
+        public int getStatus() {
+            return status;
+        }
+    }
+}
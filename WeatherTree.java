@@ -5,22 +5,84 @@
 // Role: Back End Developer
 // TA: Harper
 // Lecturer: Florian Heimerl
-// Notes to Grader: This class extends our own RedBlackTree. And All of our classes implements the
-// java.io.Serializable to serialize the file into caches to store the data for next time of use.
+// Notes to Grader: This class extends our own RedBlackTree. It is no longer serialized into the
+// cache; the WeatherLog writes its cities as records instead.
 import org.json.simple.parser.ParseException;
 
 import java.io.IOException;
 import java.time.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.DoubleFunction;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
 
 /**
  * This class will store the Weather Information Objects in the RedBlackTree. Some methods included
- * in it will generate the specific Weather Information. And to be serialized, this class implements
- * the java.io.Serializable.
+ * in it will generate the specific Weather Information. The tree is not serialized: the WeatherLog
+ * writes its cities to the cache, and WeatherLog.replay reads them into a new tree.
+ *
+ * <p>The cities are ordered by their names without regard to case, so a city is found under any
+ * case of its name.
+ *
+ * <p>The tree holds at most capacity cities. When a fetched city would go beyond it, a city that
+ * has not been read for a while is deleted from the tree, and its removal is written to the
+ * WeatherLog, so a long tail of cities looked up once does not grow the cache in memory or on disk.
+ * The city is chosen by the CLOCK policy: a hand goes around the cities, giving a city that was
+ * read since the hand last passed it a second chance and evicting the first one that was not.
+ *
+ * <p>Lookups do not block. They search the tree under an optimistic read of a StampedLock and
+ * only search again under the read lock when a writer changed the tree in the meantime. Storing
+ * fetched cities takes the write lock, so the writers run one at a time and only hold up the
+ * lookups that overlap them.
+ *
+ * <p>Besides the tree by city name, the cities are kept in one more RedBlackTree for each Measure,
+ * ordered by that number of their weather. The trees count the nodes under each node, so the
+ * cities with the highest values, or above a value, are found in O(log n + k).
+ *
+ * <p>Every Weather Object stored for a city is also added to the WeatherHistory of the city, a
+ * compressed ring of its past weather, so the trend of a measure can be shown. The histories are
+ * written to the WeatherLog along with the cities.
  *
  * @author Jiahe Jin
  */
-public class WeatherTree extends RedBlackTree implements java.io.Serializable {
-    final Data dataBase = new Data();
+public class WeatherTree extends RedBlackTree<String, Weather> {
+    private static final int MAX_FETCHES = 8; // the number of fetches refresh runs at once
+    final WeatherSource dataBase;
+    // the fetches sent to the api and not yet finished, by lower case name of the city
+    private final ConcurrentHashMap<String, CompletableFuture<Weather>> inFlight =
+        new ConcurrentHashMap<>();
+    // the cities changed since the last write by city name, null for a city that was evicted
+    private final LinkedHashMap<String, Weather> changes = new LinkedHashMap<>();
+    // the names of the cities in the tree, in the order the CLOCK hand passes them
+    private final ArrayDeque<String> clock = new ArrayDeque<>();
+    // guards the tree, changes and clock; lookups take it optimistically
+    private final StampedLock lock = new StampedLock();
+    private int capacity = Integer.MAX_VALUE; // the number of cities kept in the tree
+    // the cities ordered by each measure of their weather, then by city name
+    private final EnumMap<Measure, RedBlackTree<Weather, Weather>> indexes =
+        new EnumMap<>(Measure.class);
+    // the past weather of the cities in the tree, by lower case name of the city
+    private final HashMap<String, WeatherHistory> histories = new HashMap<>();
+    // the age after which a stale city must be fetched before it is read, null to always wait
+    private Duration hardExpiry = null;
 
 
     /**
@@ -28,64 +90,44 @@ public class WeatherTree extends RedBlackTree implements java.io.Serializable {
      * Madison's weather information. It will also set up the markedTime as the baseline for each time
      * the app being opened and closed.
      */
-    @SuppressWarnings("unchecked") public WeatherTree() {
-        try {
-            this.insert(dataBase.update("Madison"));
-        } catch (IOException | ParseException e) {
-            e.printStackTrace();
-            System.out.println("Failing to set up the WeatherApp.");
-        }
+    public WeatherTree() {
+        this(true);
     }
 
     /**
-     * The private helper method for lookup to find the city inside the RBT.
+     * This constructor builds a WeatherTree which includes the sample city Madison only when asked.
+     * The WeatherLog builds an empty one to replay its records into.
+     *
+     * @param loadSample true to fetch the weather information of Madison into the tree
      */
-    private static Weather lookup(Node current, String city) {
-        if (current == null) {
-            return null;
-        }
-        if (((Weather) current.data).getCity().equalsIgnoreCase(city))
-            return (Weather) current.data;
-        if (city.compareTo(((Weather) current.data).getCity()) < 0) {
-            // current < city; look in left subtree
-            return lookup(current.leftChild, city);
-        } else {
-            // current > city; look in right subtree
-            return lookup(current.rightChild, city);
-        }
+    WeatherTree(boolean loadSample) {
+        this(new Data(), loadSample);
     }
 
     /**
-     * The private helper method for lookupNode to find the city inside the RBT.
+     * This constructor builds a WeatherTree which gets the weather information of cities from the
+     * given source, such as a FixtureWeatherSource to run the tree without the api.
      *
-     * @return the node of city that is being found
+     * @param source     where the weather information of cities is fetched from
+     * @param loadSample true to fetch the weather information of Madison into the tree
      */
-    private static Node lookupNode(Node current, String city) {
-        if (current == null) {
-            return null;
+    public WeatherTree(WeatherSource source, boolean loadSample) {
+        super(Weather::getCity, String.CASE_INSENSITIVE_ORDER);
+        this.dataBase = source;
+        for (Measure measure : Measure.values()) {
+            indexes.put(measure, new RedBlackTree<>(weather -> weather,
+                Comparator.comparingDouble(measure.value)
+                    .thenComparing(Weather::getCity, String.CASE_INSENSITIVE_ORDER)));
         }
-        if (((Weather) current.data).getCity().equalsIgnoreCase(city))
-            return current;
-        if (city.compareTo(((Weather) current.data).getCity()) < 0) {
-            // current < city; look in left subtree
-            return lookupNode(current.leftChild, city);
-        } else {
-            // current > city; look in right subtree
-            return lookupNode(current.rightChild, city);
+        if (!loadSample) {
+            return;
         }
-    }
-
-    /**
-     * This method updates the Weather information for the specific city.
-     *
-     * @param city the name of a city
-     */
-    @SuppressWarnings("unchecked") private void update(String city) {
         try {
-            Weather weatherInfo = dataBase.update(city);
-            this.insert(weatherInfo);
+            Weather sample = dataBase.update("Madison");
+            this.store(sample, null);
         } catch (IOException | ParseException e) {
-            System.out.println("Failing to update the newest Weather Information for " + city);
+            e.printStackTrace();
+            System.out.println("Failing to set up the WeatherApp.");
         }
     }
 
@@ -96,7 +138,31 @@ public class WeatherTree extends RedBlackTree implements java.io.Serializable {
      * @return the Weather Object of the specific city.
      */
     public Weather lookup(String city) {
-        return lookup(root, city);
+        Node<Weather> node = this.find(city);
+        return node == null ? null : node.data;
+    }
+
+    /**
+     * The private helper method searches the tree for the Node of the city without taking the
+     * lock. When a writer changed the tree during the search, the search could have followed a
+     * link in the middle of a rotation, so it is done again under the read lock.
+     */
+    private Node<Weather> find(String city) {
+        long stamp = lock.tryOptimisticRead();
+        try {
+            Node<Weather> node = this.getNode(city);
+            if (lock.validate(stamp)) {
+                return node;
+            }
+        } catch (RuntimeException e) {
+            // the search saw the tree half way through a change, search again below
+        }
+        stamp = lock.readLock();
+        try {
+            return this.getNode(city);
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     /**
@@ -105,8 +171,8 @@ public class WeatherTree extends RedBlackTree implements java.io.Serializable {
      * @param city the name of a city
      * @return the Weather Object of the specific city.
      */
-    public Node lookupNode(String city) {
-        return lookupNode(root, city);
+    public Node<Weather> lookupNode(String city) {
+        return this.find(city);
     }
 
     /**
@@ -169,36 +235,729 @@ public class WeatherTree extends RedBlackTree implements java.io.Serializable {
      * This method read out the city that is being checked. In this method, lookup method will be
      * used to check if the city has been in the WeatherTree. If it does not exist in the WeatherTree
      * or its markedTime exceeds the update time, we will update this city's weather information again
-     * in the WeatherTree.
+     * in the WeatherTree. When several callers read the same city at once, only one fetch of it is
+     * sent to the api and all of them get the Weather Object of that fetch.
+     *
+     * <p>With stale-while-revalidate turned on, a city older than the update time but younger than
+     * the hard expiry is given out from the tree right away, and fetched again in the background.
+     *
+     * <p>The tree is searched only once. The Node found is kept, so the fetched Weather Object
+     * replaces the old one in place instead of being searched for again.
+     *
+     * <p>When the fetch fails, such as when the api key is over its quota, the city in the tree
+     * is given out however old it is. A city that is not in the tree yet has nothing to give out,
+     * so the failure is thrown to the caller.
      *
      * @param city the name of a city
      * @return the Weather Object for this specific being checked city
+     * @throws IOException    when the city is not in the tree and the api cannot be reached or
+     *                        answers with an error status
+     * @throws ParseException when the city is not in the tree and the answer cannot be read
      */
     public Weather read(String city) throws IOException, ParseException {
-        // Check if the WeatherTree contains the city
-        if (this.lookup(city) == null) {
-            this.update(city);
+        Node<Weather> node = this.find(city);
+        Weather targetCity = node == null ? null : node.data;
+        if (targetCity != null) {
+            targetCity.markRead();
+        }
+        // Check if the WeatherTree contains the city and its markedTime is within the Update time
+        if (targetCity != null && !this.timeBasedUpdate(targetCity, 1)) {
+            return targetCity;
+        }
+        if (targetCity != null && !this.isHardExpired(targetCity)) {
+            // revalidate in the background, failures are retried on next read
+            this.fetch(city, node);
+            return targetCity;
+        }
+        try {
+            return await(this.fetch(city, node));
+        } catch (IOException | ParseException e) {
+            if (targetCity != null) {
+                return targetCity; // shown with its old update date until a fetch gets through
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * This method fetches the city from the api whether or not it is out of date, without waiting
+     * for the fetch. It joins the fetch of the city already in flight if there is one.
+     *
+     * @param city the name of a city
+     * @return the future of the fetched Weather Object, which is stored into the tree when done
+     */
+    public CompletableFuture<Weather> revalidate(String city) {
+        return this.fetch(city, null);
+    }
+
+    /**
+     * This method turns on stale-while-revalidate. A city that is older than the update time of one
+     * hour is still given out by read until it is as old as the hard expiry, while a fetch of it
+     * runs in the background.
+     *
+     * @param hardExpiry the age from which read waits for the fetch again, or null to turn off
+     *                   stale-while-revalidate
+     */
+    public void setStaleWhileRevalidate(Duration hardExpiry) {
+        this.hardExpiry = hardExpiry;
+    }
+
+    /**
+     * This method sets the number of cities the tree keeps, evicting cities right away when the
+     * tree holds more than that.
+     *
+     * @param capacity the largest number of cities in the tree, at least one
+     * @throws IllegalArgumentException when the capacity is less than one
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity of WeatherTree must be at least 1.");
+        }
+        long stamp = lock.writeLock();
+        try {
+            this.capacity = capacity;
+            this.evict();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * This method waits until every fetch in flight, including the background ones started by
+     * stale-while-revalidate, has finished and been stored into the tree. It is called before the
+     * tree is written so that no refreshed city is lost.
+     */
+    public void awaitFetches() {
+        for (CompletableFuture<Weather> flight : inFlight.values()) {
+            try {
+                flight.join();
+            } catch (CompletionException e) {
+                // the city keeps its stale Weather Object and is fetched again on next read
+            }
+        }
+    }
+
+    /**
+     * The private helper method checks if a city is too old to be given out while it is fetched in
+     * the background.
+     *
+     * @param city the Weather Information Object for a specific city
+     * @return true when stale-while-revalidate is off or the city is older than the hard expiry
+     */
+    private boolean isHardExpired(Weather city) {
+        return hardExpiry == null
+            || Duration.between(city.getMarkedTime(), LocalDateTime.now()).compareTo(hardExpiry)
+            >= 0;
+    }
+
+    /**
+     * This private helper method fetches the city from the api, or joins the fetch of it that is
+     * already in flight. The fetched Weather Object is stored into the tree before the fetch is
+     * finished, so a caller that comes after it finds the city fresh in the tree.
+     *
+     * @param city the name of a city
+     * @param node the Node the city was found in, or null to search the tree when storing it
+     * @return the future of the Weather Object of the city shared by every caller
+     */
+    private CompletableFuture<Weather> fetch(String city, Node<Weather> node) {
+        CompletableFuture<Weather> flight = new CompletableFuture<>();
+        CompletableFuture<Weather> existing = inFlight.putIfAbsent(city.toLowerCase(), flight);
+        if (existing != null) {
+            return existing;
+        }
+        this.send(city, node, flight);
+        return flight;
+    }
+
+    /**
+     * This private helper method sends the fetch of a city whose flight is already in inFlight, and
+     * stores the fetched Weather Object into the tree before finishing the flight.
+     *
+     * @param city   the name of a city
+     * @param node   the Node the city was found in, or null to search the tree when storing it
+     * @param flight the future of the city in inFlight
+     */
+    private void send(String city, Node<Weather> node, CompletableFuture<Weather> flight) {
+        String key = city.toLowerCase();
+        dataBase.updateAsync(city).whenComplete((weatherInfo, failure) -> {
+            if (failure == null) {
+                this.store(weatherInfo, node);
+            }
+            inFlight.remove(key, flight);
+            if (failure == null) {
+                flight.complete(weatherInfo);
+            } else {
+                flight.completeExceptionally(failure);
+            }
+        });
+    }
+
+    /**
+     * This private helper method sends the next of the queued fetches of refresh. Each fetch that
+     * finishes sends the one after it, so at most as many fetches run at once as were started, and
+     * no thread waits for them.
+     *
+     * @param cities  the names of the queued cities
+     * @param flights the futures of the cities in inFlight, in the same order
+     * @param next    the index of the next city to send
+     */
+    private void sendNext(List<String> cities, List<CompletableFuture<Weather>> flights,
+        AtomicInteger next) {
+        int i = next.getAndIncrement();
+        if (i < cities.size()) {
+            this.send(cities.get(i), null, flights.get(i));
+            flights.get(i).whenComplete((weatherInfo, failure) ->
+                this.sendNext(cities, flights, next));
+        }
+    }
+
+    /**
+     * This private helper method fetches the cities in one request to the group endpoint of the
+     * api. Like fetch, a city already in flight is joined instead of being asked for again, and
+     * every city of the answer is stored into the tree before its future is finished.
+     *
+     * @param cities  the names of the cities, at most WeatherSource.GROUP_SIZE of them
+     * @param ids     the openweathermap ids of the cities, in the same order
+     * @param waits   whether the caller waits for each city, in the same order
+     * @param fetches where the futures of the cities the caller waits for are added
+     */
+    private void fetchGroup(List<String> cities, int[] ids, boolean[] waits,
+        List<Future<Weather>> fetches) {
+        List<String> keys = new ArrayList<>(cities.size());
+        List<CompletableFuture<Weather>> flights = new ArrayList<>(cities.size());
+        int[] sent = new int[cities.size()];
+        for (int i = 0; i < cities.size(); i++) {
+            String key = cities.get(i).toLowerCase();
+            CompletableFuture<Weather> flight = new CompletableFuture<>();
+            CompletableFuture<Weather> existing = inFlight.putIfAbsent(key, flight);
+            if (waits[i]) {
+                fetches.add(existing != null ? existing : flight);
+            }
+            if (existing == null) {
+                sent[keys.size()] = ids[i];
+                keys.add(key);
+                flights.add(flight);
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        int[] sentIds = Arrays.copyOf(sent, keys.size());
+        CompletableFuture<Map<Integer, Weather>> group;
+        try {
+            group = dataBase.updateGroupAsync(sentIds);
+        } catch (RuntimeException e) {
+            group = CompletableFuture.failedFuture(e);
+        }
+        group.whenComplete((weathers, failure) -> {
+            for (int i = 0; i < keys.size(); i++) {
+                Weather weatherInfo = failure == null ? weathers.get(sentIds[i]) : null;
+                if (weatherInfo != null) {
+                    this.store(weatherInfo, null);
+                }
+                inFlight.remove(keys.get(i), flights.get(i));
+                if (weatherInfo != null) {
+                    flights.get(i).complete(weatherInfo);
+                } else if (failure != null) {
+                    flights.get(i).completeExceptionally(failure);
+                } else {
+                    flights.get(i).completeExceptionally(new IOException(
+                        "The group endpoint did not answer for the city " + keys.get(i)));
+                }
+            }
+        });
+    }
+
+    /**
+     * This private helper method waits for a fetch and throws the exception it failed with.
+     */
+    private static Weather await(CompletableFuture<Weather> fetch)
+        throws IOException, ParseException {
+        try {
+            return fetch.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof ParseException) {
+                throw (ParseException) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * This method fetches the weather information of every given city that is missing from the
+     * WeatherTree or out of date, with up to MAX_FETCHES fetches running at the same time, and then
+     * stores the results into the tree. The network round trips overlap instead of running one
+     * after another, so reading the cities afterwards finds them fresh. Every fetch is put in
+     * flight before this method goes on, even the ones still waiting for their turn, so a read of
+     * the city joins it instead of fetching the city again, and awaitFetches waits for it before
+     * the tree is written. A city whose fetch fails is left alone, and reading it will fetch it
+     * again and report the failure. With stale-while-revalidate turned on, this method does not
+     * wait for the cities that read may give out stale.
+     *
+     * @param cities the names of cities, such as the favorite list
+     */
+    public void refresh(List<String> cities) {
+        this.refresh(cities, city -> -1);
+    }
+
+    /**
+     * This method refreshes the given cities like refresh(cities), but fetches the cities whose
+     * openweathermap ids are known through the group endpoint of the api, GROUP_SIZE cities in one
+     * request, so a favorite list of n cities costs about n / 20 requests instead of n. A city
+     * missing from the answer of the group endpoint is left alone like a failed fetch.
+     *
+     * @param cities the names of cities, such as the favorite list
+     * @param ids    gives the openweathermap id of a city, or -1 when it is not known
+     */
+    public void refresh(List<String> cities, ToIntFunction<String> ids) {
+        List<Future<Weather>> fetches = new ArrayList<>();
+        HashSet<String> seen = new HashSet<>();
+        List<String> queued = new ArrayList<>();
+        List<CompletableFuture<Weather>> queuedFlights = new ArrayList<>();
+        List<String> group = new ArrayList<>(WeatherSource.GROUP_SIZE);
+        int[] groupIds = new int[WeatherSource.GROUP_SIZE];
+        boolean[] groupWaits = new boolean[WeatherSource.GROUP_SIZE];
+        for (String city : cities) {
+            if (!seen.add(city.toLowerCase())) {
+                continue;
+            }
+            Weather cached = this.lookup(city);
+            if (cached == null || this.timeBasedUpdate(cached, 1)) {
+                // a city that read may give out stale is left to finish in the background
+                boolean wait = cached == null || this.isHardExpired(cached);
+                int id = ids.applyAsInt(city);
+                if (id >= 0) {
+                    groupIds[group.size()] = id;
+                    groupWaits[group.size()] = wait;
+                    group.add(city);
+                    if (group.size() == WeatherSource.GROUP_SIZE) {
+                        this.fetchGroup(group, groupIds, groupWaits, fetches);
+                        group.clear();
+                    }
+                    continue;
+                }
+                CompletableFuture<Weather> flight = new CompletableFuture<>();
+                CompletableFuture<Weather> existing =
+                    inFlight.putIfAbsent(city.toLowerCase(), flight);
+                if (existing == null) {
+                    queued.add(city);
+                    queuedFlights.add(flight);
+                }
+                if (wait) {
+                    fetches.add(existing != null ? existing : flight);
+                }
+            }
+        }
+        if (!group.isEmpty()) {
+            this.fetchGroup(group, groupIds, groupWaits, fetches);
+        }
+        AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < MAX_FETCHES; i++) {
+            this.sendNext(queued, queuedFlights, next);
+        }
+        for (Future<Weather> fetch : fetches) {
+            try {
+                fetch.get();
+            } catch (ExecutionException e) {
+                // read fetches this city again and reports why it failed
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // the fetches go on and are stored when done
+                return;
+            }
+        }
+    }
+
+    /**
+     * This private helper method stores a fetched Weather Object into the tree, replacing the one
+     * of the same city, and counts it as a change to be written to the WeatherLog. A new city may
+     * evict another one. The city counts as read, since it was fetched to be read.
+     *
+     * @param weatherInfo the fetched Weather Object of a city
+     * @param node        the Node the city was found in before the fetch, or null
+     */
+    private void store(Weather weatherInfo, Node<Weather> node) {
+        weatherInfo.markRead();
+        long stamp = lock.writeLock();
+        try {
+            this.put(weatherInfo, node);
+            // keep the changes in the order of the last change
+            changes.remove(weatherInfo.getCity());
+            changes.put(weatherInfo.getCity(), weatherInfo);
+            this.evict();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * This private helper method moves the CLOCK hand and deletes cities until the tree is within
+     * its capacity, counting each of them as a change so the WeatherLog forgets it too. A city read
+     * since the hand last passed it is skipped once; after two rounds of the hand the next city is
+     * deleted anyway, so lookups that keep marking cities cannot hold the hand up. The caller holds
+     * the write lock.
+     */
+    private void evict() {
+        int chances = 2 * clock.size();
+        while (size() > capacity && !clock.isEmpty()) {
+            String city = clock.poll();
+            Node<Weather> node = this.getNode(city);
+            if (node == null) {
+                continue;
+            }
+            if (node.data.clearRead() && chances-- > 0) {
+                clock.add(city); // second chance
+                continue;
+            }
+            this.deleteNode(node);
+            this.unindex(node.data);
+            histories.remove(city.toLowerCase());
+            changes.remove(node.data.getCity());
+            changes.put(node.data.getCity(), null);
+        }
+    }
+
+    /**
+     * This method stores the Weather Object into the tree as it is, replacing the one of the same
+     * city if there is one. It is used to rebuild the tree from the WeatherLog, so the Weather
+     * Object is not counted as a change.
+     *
+     * @param weather the Weather Object of a city
+     */
+    void put(Weather weather) {
+        long stamp = lock.writeLock();
+        try {
+            this.put(weather, null);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * The private helper method stores the Weather Object into the given Node when it still holds
+     * the same city, and otherwise searches the tree for the Node to store it in. The caller holds
+     * the write lock.
+     */
+    private void put(Weather weather, Node<Weather> node) {
+        if (node == null || !this.holds(node, weather.getCity())) {
+            node = this.getNode(weather.getCity());
+        }
+        if (node != null) {
+            this.unindex(node.data);
+            node.data = weather;
         } else {
-            // Get the Weather Object for the read city
-            Weather targetCity = this.lookup(city);
-            // Check if the targetCity's markedTime exceeds the Update time
-            if (this.timeBasedUpdate(targetCity, 1)) {
-                targetCity.setMarkedTime(LocalDateTime.now());
-                this.reset(this.lookupNode(city), targetCity);
+            this.insert(weather);
+            clock.add(weather.getCity());
+        }
+        for (RedBlackTree<Weather, Weather> index : indexes.values()) {
+            index.insert(weather);
+        }
+        histories.computeIfAbsent(weather.getCity().toLowerCase(), city -> new WeatherHistory())
+            .add(weather);
+    }
+
+    /**
+     * The private helper method takes the Weather Object out of the index of every Measure. The
+     * caller holds the write lock.
+     */
+    private void unindex(Weather weather) {
+        for (RedBlackTree<Weather, Weather> index : indexes.values()) {
+            index.delete(weather);
+        }
+    }
+
+    /**
+     * This method deletes the city from the tree. It is used to replay the removals in the
+     * WeatherLog, so the removal is not counted as a change.
+     *
+     * @param city the name of a city
+     * @return true if the city was in the tree
+     */
+    boolean remove(String city) {
+        long stamp = lock.writeLock();
+        try {
+            Node<Weather> node = this.getNode(city);
+            if (node == null) {
+                return false;
             }
+            clock.removeIf(name -> name.equalsIgnoreCase(city));
+            this.deleteNode(node);
+            this.unindex(node.data);
+            histories.remove(city.toLowerCase());
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
         }
-        return lookup(city);
     }
 
     /**
-     * This private helper method helps to reset the targetCity into the targetNode of the WeatherTree
+     * This method hands out the cities changed since it was last called, so that only those are
+     * written to the WeatherLog.
      *
-     * @param targetCity the Weather Object of a city which will be updated as a new Weather Object
-     *                   and then being replaced with the original one.
-     * @param targetNode the target city's node in the WeatherTree.
+     * @return the changed Weather Objects by city name in the order of their last change, with
+     * null for a city that was evicted from the tree
      */
-    private void reset(Node targetNode, Weather targetCity) throws IOException, ParseException {
-        targetNode.data = dataBase.update(targetCity.getCity());
+    Map<String, Weather> takeChanges() {
+        long stamp = lock.writeLock();
+        try {
+            Map<String, Weather> taken = new LinkedHashMap<>(changes);
+            changes.clear();
+            return taken;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
+    /**
+     * This method hands out the blocks of the histories that changed since they were last handed
+     * out, so that only those are written to the WeatherLog.
+     *
+     * @return the encoded blocks by lower case name of the city, each from the oldest
+     */
+    Map<String, List<byte[]>> takeHistoryChanges() {
+        long stamp = lock.writeLock();
+        try {
+            Map<String, List<byte[]>> taken = new LinkedHashMap<>();
+            for (Map.Entry<String, WeatherHistory> history : histories.entrySet()) {
+                if (history.getValue().hasChanges()) {
+                    taken.put(history.getKey(), history.getValue().takeChanges());
+                }
+            }
+            return taken;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * This method hands out every block of the history of every city in the tree, for the
+     * WeatherLog to be compacted.
+     *
+     * @return the encoded blocks by lower case name of the city, each from the oldest
+     */
+    Map<String, List<byte[]>> encodeHistories() {
+        long stamp = lock.writeLock();
+        try {
+            Map<String, List<byte[]>> encoded = new LinkedHashMap<>();
+            for (Map.Entry<String, WeatherHistory> history : histories.entrySet()) {
+                encoded.put(history.getKey(), history.getValue().encodeAll());
+            }
+            return encoded;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * This method gives the cities in the tree the histories read back from the WeatherLog. The
+     * Weather Object of each city is added to its history again, in case it was written to the log
+     * but its history was not. A history of a city no longer in the tree is dropped.
+     *
+     * @param restored the histories by lower case name of the city
+     */
+    void restoreHistories(Map<String, WeatherHistory> restored) {
+        long stamp = lock.writeLock();
+        try {
+            for (Weather weather : this) {
+                WeatherHistory history = restored.get(weather.getCity().toLowerCase());
+                if (history != null) {
+                    history.add(weather);
+                    histories.put(weather.getCity().toLowerCase(), history);
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * This method gives out every Weather Object of the tree in the order of city names.
+     *
+     * @return the list of all of Weather Objects in the tree
+     */
+    List<Weather> values() {
+        long stamp = lock.readLock();
+        try {
+            List<Weather> values = new ArrayList<>(size());
+            for (Weather weather : this) {
+                values.add(weather);
+            }
+            return values;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * This method gives out the cities in the tree with the highest values of the measure. The
+     * index of the measure is entered at the position of the n-th highest city and walked up from
+     * there, so only those cities are visited.
+     *
+     * @param measure the number of the weather the cities are compared by
+     * @param n       the number of cities
+     * @return the Weather Objects of the cities from the highest value down
+     */
+    public List<Weather> top(Measure measure, int n) {
+        List<Weather> top = new ArrayList<>(n);
+        long stamp = lock.readLock();
+        try {
+            RedBlackTree<Weather, Weather> index = indexes.get(measure);
+            index.iterator(Math.max(0, index.size() - n)).forEachRemaining(top::add);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        Collections.reverse(top);
+        return top;
+    }
+
+    /**
+     * This method gives out the cities in the tree whose value of the measure is above the given
+     * value. The index of the measure is entered at the first such city and walked up from there.
+     *
+     * @param measure the number of the weather the cities are compared by
+     * @param value   the value the cities have to be above
+     * @return the Weather Objects of the cities from the lowest value up
+     */
+    public List<Weather> above(Measure measure, double value) {
+        List<Weather> above = new ArrayList<>();
+        // a city named "" comes before every other city with the same value
+        Weather first = measure.probe.apply(Math.nextUp(value));
+        long stamp = lock.readLock();
+        try {
+            indexes.get(measure).range(first, null).forEachRemaining(above::add);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return above;
+    }
+
+    /**
+     * This method decodes the past values of the measure of the city observed in a window of time,
+     * handing each of them to the visitor from the oldest. The history of a city is kept while the
+     * city is in the tree, and holds the values of every fetch of it up to a fixed number of them.
+     * It is written to the WeatherLog with the tree, and is dropped when the city is evicted.
+     *
+     * @param city    the name of a city
+     * @param measure the number of the weather to decode
+     * @param from    the start of the window, inclusive
+     * @param to      the end of the window, exclusive
+     * @param visitor receives the time in epoch seconds and the value of each observation
+     * @return false if the city has no history in the tree
+     */
+    public boolean history(String city, Measure measure, LocalDateTime from, LocalDateTime to,
+        WeatherHistory.Visitor visitor) {
+        long stamp = lock.readLock();
+        try {
+            WeatherHistory history = histories.get(city.toLowerCase());
+            if (history == null) {
+                return false;
+            }
+            history.scan(measure, WeatherHistory.toSeconds(from), WeatherHistory.toSeconds(to),
+                visitor);
+            return true;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * This method gives out one page of the cities in the tree whose names begin with the prefix,
+     * in the order of city names and without regard to case. The page starts right after the city
+     * the last page ended with, and only the cities of the page are visited, so paging through the
+     * tree costs O(log n + limit) a page.
+     *
+     * @param prefix the beginning of the city names, the empty string for every city
+     * @param after  the name of the last city of the page before, or null for the first page
+     * @param limit  the largest number of cities in the page
+     * @return the Weather Objects of the cities in the page
+     */
+    public List<Weather> cached(String prefix, String after, int limit) {
+        List<Weather> page = new ArrayList<>(limit);
+        long stamp = lock.readLock();
+        try {
+            Iterator<Weather> cities = this.range(after == null ? prefix : after, null);
+            while (page.size() < limit && cities.hasNext()) {
+                Weather weather = cities.next();
+                if (!weather.getCity().regionMatches(true, 0, prefix, 0, prefix.length())) {
+                    break; // the names with the prefix are next to each other in the tree
+                }
+                if (after == null || !weather.getCity().equalsIgnoreCase(after)) {
+                    page.add(weather);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return page;
+    }
+
+    /**
+     * The numbers of the weather of a city that the WeatherTree keeps an index on.
+     */
+    public enum Measure {
+        TEMPERATURE("temperature", "°C", Weather::getTemperature,
+            value -> new Weather("", 0, 0, "", value, 0, 0, 0, 0, 0, 0, 0)),
+        HUMIDITY("humidity", "%", Weather::getHumidity,
+            value -> new Weather("", 0, 0, "", 0, 0, 0, 0, 0, value, 0, 0)),
+        WIND_SPEED("wind", " mph", Weather::getWindSpeed,
+            value -> new Weather("", 0, 0, "", 0, 0, 0, 0, 0, 0, value, 0)),
+        PRESSURE("pressure", " hPa", Weather::getPressure,
+            value -> new Weather("", 0, 0, "", 0, 0, 0, 0, value, 0, 0, 0));
+
+        private final String name; // the name of the measure on the command line
+        private final String unit;
+        final ToDoubleFunction<Weather> value;
+        private final DoubleFunction<Weather> probe; // a Weather Object with only the value set
+
+        Measure(String name, String unit, ToDoubleFunction<Weather> value,
+            DoubleFunction<Weather> probe) {
+            this.name = name;
+            this.unit = unit;
+            this.value = value;
+            this.probe = probe;
+        }
+
+        /**
+         * This method finds the measure by its name on the command line.
+         *
+         * @param name the name of the measure, such as temperature
+         * @return the measure
+         * @throws IllegalArgumentException when there is no measure of that name
+         */
+        public static Measure of(String name) {
+            for (Measure measure : values()) {
+                if (measure.name.equalsIgnoreCase(name)) {
+                    return measure;
+                }
+            }
+            throw new IllegalArgumentException(
+                "unknown measure: " + name + ", expect temperature, humidity, wind or pressure");
+        }
+
+        /**
+         * This method describes the value of the measure of a city, such as 21.5°C.
+         *
+         * @param weather the Weather Object of a city
+         * @return the value with its unit
+         */
+        public String describe(Weather weather) {
+            return this.describe(value.applyAsDouble(weather));
+        }
+
+        /**
+         * This method describes a value of the measure, such as 21.5°C.
+         *
+         * @param number a value of the measure
+         * @return the value with its unit
+         */
+        public String describe(double number) {
+            return number + unit;
+        }
+    }
 }